@@ -1,40 +1,99 @@
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 // === AST Node Base ===
+// Every node compiles itself into register bytecode. The node's value is left in
+// register `target`; statements leave the value the old evaluator produced, so a
+// function without a `return` still yields its last statement's value.
 abstract class ASTNode {
-    public abstract void pushEval(EvalTask task, Environment env);
+    // Where the node starts in the source, 1-based; 0 for a node with no source text
+    // of its own. Set once, right after the node is made: by the Parser, or from the
+    // node a rewrite replaces.
+    int line, column;
+
+    public abstract void compile(Compiler c, int target);
+
+    // Give this node the position of `origin`, the node it stands for, unless it
+    // already has one. Returns this node.
+    ASTNode at(ASTNode origin) {
+        return line != 0 ? this : at(origin.line, origin.column);
+    }
+
+    ASTNode at(int line, int column) {
+        this.line = line;
+        this.column = column;
+        return this;
+    }
+
+    // Collect the names this node declares with `let` in the enclosing scope.
+    // Nodes that open their own scope (functions, for-loops) declare nothing outside it.
+    public void declareLocals(Set<String> names) {}
+
+    // Collect the names of functions this node defines in the enclosing scope.
+    public void declareFunctions(Set<String> names) {}
+
+    // True if evaluating this node can have no effect besides producing its value
+    // (no calls, assignments or output), so it may be reordered with a variable read.
+    public boolean isSideEffectFree() { return false; }
+
+    // Literals: the value is known before the program runs.
+    public boolean isConstant() { return false; }
+    public Object constantValue() { return null; }
+
+    // Return an equivalent, simplified node (see Optimizer). Nodes are immutable, so
+    // a node that changes returns a copy and one that doesn't returns itself.
+    public ASTNode optimize(Optimizer o) { return this; }
+
+    // Like optimize(), for a node whose value is only tested for truthiness.
+    public ASTNode optimizeCondition(Optimizer o) { return optimize(o); }
+
+    // Structural access to child nodes, for analyses and rewrites that treat every
+    // node the same way. map() returns a copy with each child replaced by f(child).
+    public void forEachChild(Consumer<ASTNode> f) {}
+    public ASTNode map(UnaryOperator<ASTNode> f) { return this; }
+
+    // True for a literal condition that is always truthy: the loop needs no test.
+    static boolean alwaysTrue(ASTNode condition) {
+        return condition.isConstant() && Values.isTruthy(condition.constantValue());
+    }
 }
 
 // === Block Node ===
 class BlockNode extends ASTNode {
     public final List<ASTNode> statements;
     public BlockNode(List<ASTNode> statements) { this.statements = statements; }
-    public void pushEval(EvalTask task, Environment env) {
-        task.push(new EvalStep() {
-            int index = 0;
-            public void execute(EvalTask t) {
-                if (env.isReturnFlag()) {
-                    return; 
-                }
-                
-                if (index > 0) {
-                    if (index < statements.size()) {
-                        t.operands.pop(); // discard previous stmt result
-                    }
-                } else if (statements.isEmpty()) {
-                    t.operands.push(null);
-                    return;
-                }
-
-                if (index >= statements.size()) {
-                    return; // done
-                }
-
-                ASTNode stmt = statements.get(index++);
-                t.push(this);
-                stmt.pushEval(t, env);
-            }
-        });
+    public void declareLocals(Set<String> names) {
+        for (ASTNode stmt : statements) stmt.declareLocals(names);
+    }
+    public void declareFunctions(Set<String> names) {
+        for (ASTNode stmt : statements) stmt.declareFunctions(names);
+    }
+    public ASTNode optimize(Optimizer o) {
+        List<ASTNode> optimized = new ArrayList<>(statements.size());
+        for (int i = 0; i < statements.size(); i++) {
+            ASTNode stmt = statements.get(i).optimize(o);
+            // A literal statement does nothing unless it is the block's value.
+            if (stmt.isConstant() && i < statements.size() - 1) continue;
+            optimized.add(stmt);
+        }
+        return new BlockNode(optimized).at(this);
+    }
+    public void forEachChild(Consumer<ASTNode> f) { statements.forEach(f); }
+    public ASTNode map(UnaryOperator<ASTNode> f) {
+        List<ASTNode> mapped = new ArrayList<>(statements.size());
+        for (ASTNode stmt : statements) mapped.add(f.apply(stmt));
+        return new BlockNode(mapped).at(this);
+    }
+    public void compile(Compiler c, int target) {
+        if (statements.isEmpty()) {
+            c.emit(OpCode.NULL, target);
+            return;
+        }
+        for (ASTNode stmt : statements) {
+            c.markLine(stmt);
+            stmt.compile(c, target); // each statement overwrites the previous result
+        }
     }
 }
 
@@ -43,12 +102,13 @@ class LetNode extends ASTNode {
     public final String name;
     public final ASTNode expr;
     public LetNode(String name, ASTNode expr) { this.name = name; this.expr = expr; }
-    public void pushEval(EvalTask task, Environment env) {
-        task.push(t -> {
-            Object val = t.operands.peek(); // keep result on stack
-            env.define(name, val);
-        });
-        expr.pushEval(task, env);
+    public void declareLocals(Set<String> names) { names.add(name); }
+    public ASTNode optimize(Optimizer o) { return new LetNode(name, expr.optimize(o)).at(this); }
+    public void forEachChild(Consumer<ASTNode> f) { f.accept(expr); }
+    public ASTNode map(UnaryOperator<ASTNode> f) { return new LetNode(name, f.apply(expr)).at(this); }
+    public void compile(Compiler c, int target) {
+        expr.compile(c, target);
+        c.emitDefine(name, target);
     }
 }
 
@@ -56,12 +116,12 @@ class LetNode extends ASTNode {
 class PrintNode extends ASTNode {
     public final ASTNode expr;
     public PrintNode(ASTNode expr) { this.expr = expr; }
-    public void pushEval(EvalTask task, Environment env) {
-        task.push(t -> {
-            Object val = t.operands.peek();
-            System.out.println(val);
-        });
-        expr.pushEval(task, env);
+    public ASTNode optimize(Optimizer o) { return new PrintNode(expr.optimize(o)).at(this); }
+    public void forEachChild(Consumer<ASTNode> f) { f.accept(expr); }
+    public ASTNode map(UnaryOperator<ASTNode> f) { return new PrintNode(f.apply(expr)).at(this); }
+    public void compile(Compiler c, int target) {
+        expr.compile(c, target);
+        c.emit(OpCode.PRINT, target);
     }
 }
 
@@ -71,117 +131,149 @@ class IfNode extends ASTNode {
     public IfNode(ASTNode condition, ASTNode thenBlock, ASTNode elseBlock) {
         this.condition = condition; this.thenBlock = thenBlock; this.elseBlock = elseBlock;
     }
-    public void pushEval(EvalTask task, Environment env) {
-        task.push(t -> {
-            Object cond = t.operands.pop();
-            if (isTruthy(cond)) {
-                thenBlock.pushEval(t, env);
-            } else if (elseBlock != null) {
-                elseBlock.pushEval(t, env);
-            } else {
-                t.operands.push(null);
-            }
-        });
-        condition.pushEval(task, env);
+    public void declareLocals(Set<String> names) {
+        thenBlock.declareLocals(names);
+        if (elseBlock != null) elseBlock.declareLocals(names);
     }
-    private boolean isTruthy(Object o) {
-        if (o == null) return false;
-        if (o instanceof Boolean) return (Boolean) o;
-        if (o instanceof Number) return ((Number) o).doubleValue() != 0;
-        return true;
+    public void declareFunctions(Set<String> names) {
+        thenBlock.declareFunctions(names);
+        if (elseBlock != null) elseBlock.declareFunctions(names);
+    }
+    public ASTNode optimize(Optimizer o) {
+        ASTNode cond = condition.optimizeCondition(o);
+        if (cond.isConstant()) {
+            // Only one branch can ever run; an `if` that runs nothing has the value null.
+            if (Values.isTruthy(cond.constantValue())) return thenBlock.optimize(o);
+            return elseBlock != null ? elseBlock.optimize(o) : new ConstantNode(null).at(this);
+        }
+        return new IfNode(cond, thenBlock.optimize(o), elseBlock == null ? null : elseBlock.optimize(o)).at(this);
+    }
+    public void forEachChild(Consumer<ASTNode> f) {
+        f.accept(condition);
+        f.accept(thenBlock);
+        if (elseBlock != null) f.accept(elseBlock);
+    }
+    public ASTNode map(UnaryOperator<ASTNode> f) {
+        return new IfNode(f.apply(condition), f.apply(thenBlock), elseBlock == null ? null : f.apply(elseBlock)).at(this);
+    }
+    public void compile(Compiler c, int target) {
+        condition.compile(c, target);
+        int toElse = c.emitJump(OpCode.JMPF, target);
+        thenBlock.compile(c, target);
+        int toEnd = c.emitJump(OpCode.JMP);
+        c.patchJump(toElse);
+        if (elseBlock != null) elseBlock.compile(c, target);
+        else c.emit(OpCode.NULL, target);
+        c.patchJump(toEnd);
     }
 }
 
 // === While Statement ===
 class WhileNode extends ASTNode {
     public final ASTNode condition, body;
+    public final List<OnceNode> hoisted;    // loop-invariant expressions inside it
     public WhileNode(ASTNode condition, ASTNode body) {
-        this.condition = condition; this.body = body;
-    }
-    public void pushEval(EvalTask task, Environment env) {
-        task.push(new EvalStep() {
-            int state = 0; 
-            public void execute(EvalTask t) {
-                if (state == 0) {
-                    state = 1;
-                    t.push(this);
-                    condition.pushEval(t, env);
-                } else if (state == 1) {
-                    Object cond = t.operands.pop();
-                    if (!isTruthy(cond)) {
-                        t.operands.push(null); 
-                        return; 
-                    }
-                    state = 2; 
-                    t.push(this);
-                    body.pushEval(t, env);
-                } else if (state == 2) {
-                    t.operands.pop(); // discard body result
-                    if (env.isReturnFlag()) {
-                        t.operands.push(null);
-                        return; // return breaks while loop
-                    }
-                    state = 0;
-                    t.push(this); // loop again
-                }
-            }
-        });
+        this(condition, body, Collections.emptyList());
+    }
+    public WhileNode(ASTNode condition, ASTNode body, List<OnceNode> hoisted) {
+        this.condition = condition; this.body = body; this.hoisted = hoisted;
     }
-    private boolean isTruthy(Object o) {
-        if (o == null) return false;
-        if (o instanceof Boolean) return (Boolean) o;
-        if (o instanceof Number) return ((Number) o).doubleValue() != 0;
-        return true;
+    public void declareLocals(Set<String> names) { body.declareLocals(names); }
+    public void declareFunctions(Set<String> names) { body.declareFunctions(names); }
+    public ASTNode optimize(Optimizer o) {
+        ASTNode cond = condition.optimizeCondition(o);
+        if (cond.isConstant() && !Values.isTruthy(cond.constantValue())) {
+            return new ConstantNode(null).at(this);  // the body never runs
+        }
+        WhileNode loop = new WhileNode(cond, body.optimize(o));
+        Set<String> writes = o.changedBy(o.effectsOf(loop));
+        List<OnceNode> hoisted = new ArrayList<>();
+        return new WhileNode(o.hoist(loop.condition, writes, hoisted), o.hoist(loop.body, writes, hoisted), hoisted).at(this);
+    }
+    public void forEachChild(Consumer<ASTNode> f) {
+        f.accept(condition);
+        f.accept(body);
+    }
+    public ASTNode map(UnaryOperator<ASTNode> f) {
+        return new WhileNode(f.apply(condition), f.apply(body), hoisted).at(this);
+    }
+    public void compile(Compiler c, int target) {
+        int mark = c.beginHoisted(hoisted);
+        int loop = c.here();
+        int toExit = -1;
+        if (!alwaysTrue(condition)) {
+            condition.compile(c, target);
+            toExit = c.emitJump(OpCode.JMPF, target);
+        }
+        body.compile(c, target);
+        c.markLine(this);
+        c.emit(OpCode.JMP, loop);
+        if (toExit >= 0) c.patchJump(toExit);
+        c.endHoisted(hoisted, mark);
+        c.emit(OpCode.NULL, target);
     }
 }
 
 // === For Statement ===
+// The loop runs in its own scope, so `let i` in the header stays local to the loop.
 class ForNode extends ASTNode {
     public final ASTNode init, condition, update, body;
+    public final List<OnceNode> hoisted;    // loop-invariant expressions inside it
     public ForNode(ASTNode init, ASTNode condition, ASTNode update, ASTNode body) {
+        this(init, condition, update, body, Collections.emptyList());
+    }
+    public ForNode(ASTNode init, ASTNode condition, ASTNode update, ASTNode body, List<OnceNode> hoisted) {
         this.init = init; this.condition = condition; this.update = update; this.body = body;
+        this.hoisted = hoisted;
     }
-    public void pushEval(EvalTask task, Environment env) {
-        Environment loopEnv = new Environment(env);  
-        
-        task.push(new EvalStep() {
-            int state = 0; 
-            public void execute(EvalTask t) {
-                if (state == 0) {
-                    state = 1;
-                    t.push(this);
-                    if (condition != null) condition.pushEval(t, loopEnv);
-                    else t.operands.push(true);
-                } else if (state == 1) {
-                    Object cond = t.operands.pop();
-                    if (!isTruthy(cond)) { t.operands.push(null); return; }
-                    state = 2;
-                    t.push(this);
-                    body.pushEval(t, loopEnv);
-                } else if (state == 2) {
-                    t.operands.pop(); // discard body result
-                    if (loopEnv.isReturnFlag()) { t.operands.push(null); return; }
-                    state = 3;
-                    t.push(this);
-                    if (update != null) update.pushEval(t, loopEnv);
-                    else t.operands.push(null);
-                } else if (state == 3) {
-                    t.operands.pop(); // discard update result
-                    state = 0; // restart
-                    t.push(this);
-                }
-            }
-        });
-        
-        task.push(t -> t.operands.pop()); 
-        if (init != null) init.pushEval(task, loopEnv);
-        else task.operands.push(null);
-    }
-    private boolean isTruthy(Object o) {
-        if (o == null) return false;
-        if (o instanceof Boolean) return (Boolean) o;
-        if (o instanceof Number) return ((Number) o).doubleValue() != 0;
-        return true;
+    public ASTNode optimize(Optimizer o) {
+        ForNode loop = new ForNode(init == null ? null : init.optimize(o),
+                condition == null ? null : condition.optimizeCondition(o),
+                update == null ? null : update.optimize(o), body.optimize(o));
+        // The header's init runs once anyway; everything else runs per iteration.
+        Optimizer.Effects effects = o.effectsOf(loop);
+        Set<String> writes = o.changedBy(effects);
+        List<OnceNode> hoisted = new ArrayList<>();
+        ASTNode cond = loop.condition == null ? null : o.hoist(loop.condition, writes, hoisted);
+        ASTNode upd = loop.update == null ? null : o.hoist(loop.update, writes, hoisted);
+        ASTNode bod = o.hoist(loop.body, writes, hoisted);
+        ASTNode counted = CountedForNode.match(o, effects, loop.init, cond, upd, bod, hoisted);
+        return (counted != null ? counted : new ForNode(loop.init, cond, upd, bod, hoisted)).at(this);
+    }
+    public void forEachChild(Consumer<ASTNode> f) {
+        if (init != null) f.accept(init);
+        if (condition != null) f.accept(condition);
+        if (update != null) f.accept(update);
+        f.accept(body);
+    }
+    public ASTNode map(UnaryOperator<ASTNode> f) {
+        return new ForNode(init == null ? null : f.apply(init), condition == null ? null : f.apply(condition),
+                update == null ? null : f.apply(update), f.apply(body), hoisted).at(this);
+    }
+    public void compile(Compiler c, int target) {
+        Set<String> locals = new LinkedHashSet<>();
+        if (init != null) init.declareLocals(locals);
+        body.declareLocals(locals);
+        Set<String> functions = new HashSet<>();
+        body.declareFunctions(functions);
+        c.beginScope(locals, functions);
+        if (init != null) init.compile(c, target);
+        int mark = c.beginHoisted(hoisted);
+        int loop = c.here();
+        int toExit = -1;
+        if (condition != null && !alwaysTrue(condition)) {
+            c.markLine(this);
+            condition.compile(c, target);
+            toExit = c.emitJump(OpCode.JMPF, target);
+        }
+        body.compile(c, target);
+        c.markLine(this);
+        if (update != null) update.compile(c, target);
+        c.emit(OpCode.JMP, loop);
+        if (toExit >= 0) c.patchJump(toExit);
+        c.endHoisted(hoisted, mark);
+        c.endScope();
+        c.emit(OpCode.NULL, target);
     }
 }
 
@@ -190,14 +282,28 @@ class FunctionNode extends ASTNode {
     public final String name;
     public final List<String> params;
     public final ASTNode body;
+    public final boolean memoize;   // pure and costly enough to cache results (see Optimizer)
     public FunctionNode(String name, List<String> params, ASTNode body) {
-        this.name = name; this.params = params; this.body = body;
+        this(name, params, body, false);
     }
-    public void pushEval(EvalTask task, Environment env) {
-        task.push(t -> {
-            env.defineFunction(name, new UserFunction(params, body, env));
-            t.operands.push(null);
-        });
+    public FunctionNode(String name, List<String> params, ASTNode body, boolean memoize) {
+        this.name = name; this.params = params; this.body = body; this.memoize = memoize;
+    }
+    public void declareFunctions(Set<String> names) { names.add(name); }
+    public ASTNode optimize(Optimizer o) {
+        o.enterFunction(this);
+        try {
+            return new FunctionNode(name, params, body.optimize(o), o.shouldMemoize(this)).at(this);
+        } finally {
+            o.exitFunction();
+        }
+    }
+    public void forEachChild(Consumer<ASTNode> f) { f.accept(body); }
+    public ASTNode map(UnaryOperator<ASTNode> f) { return new FunctionNode(name, params, f.apply(body), memoize).at(this); }
+    public void compile(Compiler c, int target) {
+        Chunk chunk = c.compileFunction(name, params, body, memoize);
+        c.emit(OpCode.DEFFUN, c.constant(chunk));
+        c.emit(OpCode.NULL, target);
     }
 }
 
@@ -205,12 +311,16 @@ class FunctionNode extends ASTNode {
 class ReturnNode extends ASTNode {
     public final ASTNode expr;
     public ReturnNode(ASTNode expr) { this.expr = expr; }
-    public void pushEval(EvalTask task, Environment env) {
-        task.push(t -> {
-            Object val = t.operands.peek(); // return value is on stack
-            env.setReturnFlag(true, val);
-        });
-        expr.pushEval(task, env);
+    public ASTNode optimize(Optimizer o) { return new ReturnNode(expr.optimize(o)).at(this); }
+    public void forEachChild(Consumer<ASTNode> f) { f.accept(expr); }
+    public ASTNode map(UnaryOperator<ASTNode> f) { return new ReturnNode(f.apply(expr)).at(this); }
+    public void compile(Compiler c, int target) {
+        if (expr instanceof FunctionCallNode && c.inFunction()) {
+            ((FunctionCallNode) expr).compileTailCall(c);
+            return;
+        }
+        expr.compile(c, target);
+        c.emit(OpCode.RETURN, target);
     }
 }
 
@@ -219,12 +329,22 @@ class AssignNode extends ASTNode {
     public final String name;
     public final ASTNode expr;
     public AssignNode(String name, ASTNode expr) { this.name = name; this.expr = expr; }
-    public void pushEval(EvalTask task, Environment env) {
-        task.push(t -> {
-            Object val = t.operands.peek(); // keep result on stack
-            env.assign(name, val);
-        });
-        expr.pushEval(task, env);
+    public ASTNode optimize(Optimizer o) { return new AssignNode(name, expr.optimize(o)).at(this); }
+    public void forEachChild(Consumer<ASTNode> f) { f.accept(expr); }
+    public ASTNode map(UnaryOperator<ASTNode> f) { return new AssignNode(name, f.apply(expr)).at(this); }
+    public void compile(Compiler c, int target) {
+        // `x = x + e` becomes one atomic update when e cannot observe x changing.
+        if (expr instanceof BinaryOpNode) {
+            BinaryOpNode bin = (BinaryOpNode) expr;
+            int op = bin.op.opcode;
+            boolean arithmetic = op == OpCode.ADD || op == OpCode.SUB || op == OpCode.MUL || op == OpCode.DIV;
+            if (arithmetic && bin.left instanceof VariableNode && ((VariableNode) bin.left).name.equals(name)
+                    && bin.right.isSideEffectFree() && c.emitUpdate(name, op, bin.right, target)) {
+                return;
+            }
+        }
+        expr.compile(c, target);
+        c.emitSet(name, target);
     }
 }
 
@@ -232,8 +352,9 @@ class AssignNode extends ASTNode {
 class VariableNode extends ASTNode {
     public final String name;
     public VariableNode(String name) { this.name = name; }
-    public void pushEval(EvalTask task, Environment env) {
-        task.push(t -> t.operands.push(env.get(name)));
+    public boolean isSideEffectFree() { return true; }
+    public void compile(Compiler c, int target) {
+        c.emitGet(target, name);
     }
 }
 
@@ -241,102 +362,105 @@ class VariableNode extends ASTNode {
 class NumberNode extends ASTNode {
     public final int value;
     public NumberNode(int value) { this.value = value; }
-    public void pushEval(EvalTask task, Environment env) {
-        task.push(t -> t.operands.push(value));
+    public boolean isSideEffectFree() { return true; }
+    public boolean isConstant() { return true; }
+    public Object constantValue() { return value; }
+    public void compile(Compiler c, int target) {
+        c.emit(OpCode.CONSTI, target, value);
     }
 }
 
 // === Binary Operation ===
 class BinaryOpNode extends ASTNode {
     public final ASTNode left;
-    public final String op;
+    public final Operator op;
     public final ASTNode right;
 
-    public BinaryOpNode(ASTNode left, String op, ASTNode right) {
+    public BinaryOpNode(ASTNode left, Operator op, ASTNode right) {
         this.left = left; this.op = op; this.right = right;
     }
 
-    public void pushEval(EvalTask task, Environment env) {
-        task.push(t -> {
-            Object rightVal = t.operands.pop();
-            Object leftVal = t.operands.pop();
-
-            switch (op) {
-                case "+": 
-                    if (leftVal instanceof String || rightVal instanceof String) {
-                        t.operands.push(String.valueOf(leftVal) + String.valueOf(rightVal));
-                        break;
-                    }
-                    t.operands.push(toNumber(leftVal) + toNumber(rightVal));
-                    break;
-                case "-": t.operands.push(toNumber(leftVal) - toNumber(rightVal)); break;
-                case "*": t.operands.push(toNumber(leftVal) * toNumber(rightVal)); break;
-                case "/": t.operands.push(toNumber(leftVal) / toNumber(rightVal)); break;
-                case "==": t.operands.push(leftVal.equals(rightVal)); break;
-                case "!=": t.operands.push(!leftVal.equals(rightVal)); break;
-                case "<": t.operands.push(toNumber(leftVal) < toNumber(rightVal)); break;
-                case "<=": t.operands.push(toNumber(leftVal) <= toNumber(rightVal)); break;
-                case ">": t.operands.push(toNumber(leftVal) > toNumber(rightVal)); break;
-                case ">=": t.operands.push(toNumber(leftVal) >= toNumber(rightVal)); break;
-                case "&&": t.operands.push(isTruthy(leftVal) && isTruthy(rightVal)); break;
-                case "||": t.operands.push(isTruthy(leftVal) || isTruthy(rightVal)); break;
-                default:
-                    throw new RuntimeException("Unknown operator " + op);
-            }
-        });
-        right.pushEval(task, env);
-        left.pushEval(task, env);
+    public boolean isSideEffectFree() {
+        return left.isSideEffectFree() && right.isSideEffectFree();
+    }
+
+    public ASTNode optimize(Optimizer o) {
+        return fold(left.optimize(o), right.optimize(o));
     }
 
-    private double toNumber(Object o) {
-        if (o instanceof Integer) return (Integer) o;
-        if (o instanceof Double) return (Double) o;
-        throw new RuntimeException("Expected a number but got " + o);
+    // Both sides of && and || are only tested for truthiness.
+    public ASTNode optimizeCondition(Optimizer o) {
+        if (op != Operator.AND && op != Operator.OR) return optimize(o);
+        return fold(left.optimizeCondition(o), right.optimizeCondition(o));
     }
 
-    private boolean isTruthy(Object o) {
-        if (o == null) return false;
-        if (o instanceof Boolean) return (Boolean) o;
-        if (o instanceof Number) return ((Number) o).doubleValue() != 0;
-        return true;
+    public void forEachChild(Consumer<ASTNode> f) {
+        f.accept(left);
+        f.accept(right);
+    }
+    public ASTNode map(UnaryOperator<ASTNode> f) { return new BinaryOpNode(f.apply(left), op, f.apply(right)).at(this); }
+
+    private ASTNode fold(ASTNode l, ASTNode r) {
+        if (l.isConstant() && r.isConstant()) {
+            Object value = Optimizer.binary(op, l.constantValue(), r.constantValue());
+            if (value != Optimizer.NO_FOLD) return Optimizer.literal(value).at(this);
+        }
+        return new BinaryOpNode(l, op, r).at(this);
+    }
+
+    public void compile(Compiler c, int target) {
+        left.compile(c, target);
+        int rhs = c.allocReg();
+        right.compile(c, rhs);
+        c.emit(op.opcode, target, target, rhs);
+        c.freeRegs(rhs);
     }
 }
 
 // === Unary Operation ===
 class UnaryOpNode extends ASTNode {
-    public final String op;
+    public final Operator op;
     public final ASTNode expr;
-    public UnaryOpNode(String op, ASTNode expr) {
+    public UnaryOpNode(Operator op, ASTNode expr) {
         this.op = op; this.expr = expr;
     }
 
-    public void pushEval(EvalTask task, Environment env) {
-        task.push(t -> {
-            Object val = t.operands.pop();
-            switch (op) {
-                case "!": t.operands.push(!isTruthy(val)); break;
-                case "-": t.operands.push(-toNumber(val)); break;
-                default: throw new RuntimeException("Unknown unary operator " + op);
-            }
-        });
-        expr.pushEval(task, env);
+    public boolean isSideEffectFree() { return expr.isSideEffectFree(); }
+
+    public ASTNode optimize(Optimizer o) {
+        // `!` only tests its operand's truthiness, so !!!x reduces to !x.
+        ASTNode e = op == Operator.NOT ? expr.optimizeCondition(o) : expr.optimize(o);
+        if (e.isConstant()) {
+            Object value = Optimizer.unary(op, e.constantValue());
+            if (value != Optimizer.NO_FOLD) return Optimizer.literal(value).at(this);
+        }
+        return new UnaryOpNode(op, e).at(this);
+    }
+
+    // !!x as a condition is just x: both have the same truthiness.
+    public ASTNode optimizeCondition(Optimizer o) {
+        ASTNode e = optimize(o);
+        while (isNot(e) && isNot(((UnaryOpNode) e).expr)) {
+            e = ((UnaryOpNode) ((UnaryOpNode) e).expr).expr;
+        }
+        return e;
     }
 
-    private double toNumber(Object o) {
-        if (o instanceof Integer) return (Integer) o;
-        if (o instanceof Double) return (Double) o;
-        throw new RuntimeException("Expected a number but got " + o);
+    public void forEachChild(Consumer<ASTNode> f) { f.accept(expr); }
+    public ASTNode map(UnaryOperator<ASTNode> f) { return new UnaryOpNode(op, f.apply(expr)).at(this); }
+
+    private static boolean isNot(ASTNode node) {
+        return node instanceof UnaryOpNode && ((UnaryOpNode) node).op == Operator.NOT;
     }
 
-    private boolean isTruthy(Object o) {
-        if (o == null) return false;
-        if (o instanceof Boolean) return (Boolean) o;
-        if (o instanceof Number) return ((Number) o).doubleValue() != 0;
-        return true;
+    public void compile(Compiler c, int target) {
+        expr.compile(c, target);
+        c.emit(op.unaryOpcode, target, target);
     }
 }
 
 // === Function Call ===
+// Arguments are evaluated left to right into consecutive registers.
 class FunctionCallNode extends ASTNode {
     public final String name;
     public final List<ASTNode> args;
@@ -345,75 +469,51 @@ class FunctionCallNode extends ASTNode {
         this.name = name; this.args = args;
     }
 
-    public void pushEval(EvalTask task, Environment env) {
-        task.push(new EvalStep() {
-            int state = 0; 
-            CallStack callStack;
-            Environment localEnv;
-            
-            public void execute(EvalTask t) {
-                if (state == 0) {
-                    List<Object> argValues = new java.util.ArrayList<>();
-                    for (int i=0; i<args.size(); i++) {
-                         argValues.add(0, t.operands.pop()); 
-                    }
-                    
-                    callStack = env.getCallStack();
-                    callStack.push(name, argValues);
-                    
-                    try {
-                        BuiltinFunction builtin = env.getBuiltin(name);
-                        if (builtin != null) {
-                            t.operands.push(builtin.call(argValues));
-                            callStack.pop();
-                            return;
-                        }
-                        
-                        UserFunction func = env.getFunction(name);
-                        if (func == null) throw new RuntimeException("Function not found: " + name);
-                        if (argValues.size() != func.params.size())
-                            throw new RuntimeException("Function " + name + " expects " + func.params.size() + " arguments, got " + argValues.size());
-                        
-                        localEnv = new Environment(func.env);
-                        for(int i=0; i<argValues.size(); i++) localEnv.define(func.params.get(i), argValues.get(i));
-                        
-                        state = 1;
-                        t.push(this);
-                        
-                        func.body.pushEval(t, localEnv);
-                        
-                    } catch (RuntimeException e) {
-                        if (callStack != null) callStack.pop();
-                        if (!e.getMessage().contains("Call stack")) {
-                            throw new RuntimeException(e.getMessage() + "\n\nCall stack (most recent call first):\n" + env.getCallStack().formatTrace(), e);
-                        }
-                        throw e;
-                    }
-                } else if (state == 1) {
-                    if (localEnv.isReturnFlag()) {
-                        t.operands.pop(); 
-                        t.operands.push(localEnv.getReturnValue());
-                        localEnv.setReturnFlag(false, null);
-                    }
-                    callStack.pop(); 
-                }
-            }
-        });
-        
-        for(int i = args.size() - 1; i >= 0; i--) {
-            args.get(i).pushEval(task, env);
+    public ASTNode optimize(Optimizer o) {
+        List<ASTNode> optimized = new ArrayList<>(args.size());
+        for (ASTNode arg : args) optimized.add(arg.optimize(o));
+        return new FunctionCallNode(name, optimized).at(this);
+    }
+
+    public void forEachChild(Consumer<ASTNode> f) { args.forEach(f); }
+    public ASTNode map(UnaryOperator<ASTNode> f) {
+        List<ASTNode> mapped = new ArrayList<>(args.size());
+        for (ASTNode arg : args) mapped.add(f.apply(arg));
+        return new FunctionCallNode(name, mapped).at(this);
+    }
+
+    public void compile(Compiler c, int target) {
+        int base = c.nextReg();
+        for (ASTNode arg : args) {
+            arg.compile(c, c.allocReg());
+        }
+        c.emit(OpCode.CALL, target, c.constant(name), base, args.size(), c.callSite(name));
+        c.freeRegs(base);
+    }
+
+    // `return name(args)`: the callee replaces the current frame instead of stacking
+    // on top of it. The trailing RETURN handles builtins, which return a value in place.
+    public void compileTailCall(Compiler c) {
+        int base = c.nextReg();
+        for (ASTNode arg : args) {
+            arg.compile(c, c.allocReg());
         }
+        if (base == c.nextReg()) c.allocReg();  // the result register for a builtin
+        c.emit(OpCode.TAILCALL, c.constant(name), base, args.size(), c.callSite(name));
+        c.emit(OpCode.RETURN, base);
+        c.freeRegs(base);
     }
 }
 
 // === User Function Holder ===
+// A compiled function body closed over the environment it was defined in.
 class UserFunction {
     public final List<String> params;
-    public final ASTNode body;
+    public final Chunk body;
     public final Environment env;
 
-    public UserFunction(List<String> params, ASTNode body, Environment env) {
-        this.params = params;
+    public UserFunction(Chunk body, Environment env) {
+        this.params = body.params;
         this.body = body;
         this.env = env;
     }
@@ -426,7 +526,246 @@ class StringNode extends ASTNode {
         this.value = value;
     }
 
-    public void pushEval(EvalTask task, Environment env) {
-        task.push(t -> t.operands.push(value));
+    public boolean isSideEffectFree() { return true; }
+    public boolean isConstant() { return true; }
+    public Object constantValue() { return value; }
+
+    public void compile(Compiler c, int target) {
+        c.emit(OpCode.CONST, target, c.constant(value));
+    }
+}
+
+// === Constant Literal ===
+// A value computed by the Optimizer that has no literal syntax of its own:
+// a long, a double, a boolean, or null.
+class ConstantNode extends ASTNode {
+    public final Object value;
+
+    public ConstantNode(Object value) {
+        this.value = value;
+    }
+
+    public boolean isSideEffectFree() { return true; }
+    public boolean isConstant() { return true; }
+    public Object constantValue() { return value; }
+
+    public void compile(Compiler c, int target) {
+        if (value == null) c.emit(OpCode.NULL, target);
+        else c.emit(OpCode.CONST, target, c.constant(value));
+    }
+}
+
+// === List Literal ===
+// `[a, b, c]`: elements are evaluated left to right into consecutive registers, and
+// every evaluation makes a new list.
+class ListNode extends ASTNode {
+    public final List<ASTNode> elements;
+    public ListNode(List<ASTNode> elements) { this.elements = elements; }
+    public ASTNode optimize(Optimizer o) {
+        List<ASTNode> optimized = new ArrayList<>(elements.size());
+        for (ASTNode element : elements) optimized.add(element.optimize(o));
+        return new ListNode(optimized).at(this);
+    }
+    public void forEachChild(Consumer<ASTNode> f) { elements.forEach(f); }
+    public ASTNode map(UnaryOperator<ASTNode> f) {
+        List<ASTNode> mapped = new ArrayList<>(elements.size());
+        for (ASTNode element : elements) mapped.add(f.apply(element));
+        return new ListNode(mapped).at(this);
+    }
+    public void compile(Compiler c, int target) {
+        int base = c.nextReg();
+        for (ASTNode element : elements) {
+            element.compile(c, c.allocReg());
+        }
+        c.emit(OpCode.NEWLIST, target, base, elements.size());
+        c.freeRegs(base);
+    }
+}
+
+// === Dict Literal ===
+// `{k1: v1, k2: v2}`: keys and values are evaluated left to right, in pairs, into
+// consecutive registers, and every evaluation makes a new dict.
+class DictNode extends ASTNode {
+    public final List<ASTNode> entries;     // key, value, key, value...
+    public DictNode(List<ASTNode> entries) { this.entries = entries; }
+    public ASTNode optimize(Optimizer o) {
+        List<ASTNode> optimized = new ArrayList<>(entries.size());
+        for (ASTNode entry : entries) optimized.add(entry.optimize(o));
+        return new DictNode(optimized).at(this);
+    }
+    public void forEachChild(Consumer<ASTNode> f) { entries.forEach(f); }
+    public ASTNode map(UnaryOperator<ASTNode> f) {
+        List<ASTNode> mapped = new ArrayList<>(entries.size());
+        for (ASTNode entry : entries) mapped.add(f.apply(entry));
+        return new DictNode(mapped).at(this);
+    }
+    public void compile(Compiler c, int target) {
+        int base = c.nextReg();
+        for (ASTNode entry : entries) {
+            entry.compile(c, c.allocReg());
+        }
+        c.emit(OpCode.NEWDICT, target, base, entries.size() / 2);
+        c.freeRegs(base);
+    }
+}
+
+// === Index Expression ===
+// `target[index]`: an element of a list, the value of a dict key, or a one-character
+// string.
+class IndexNode extends ASTNode {
+    public final ASTNode target, index;
+    public IndexNode(ASTNode target, ASTNode index) { this.target = target; this.index = index; }
+    public ASTNode optimize(Optimizer o) { return new IndexNode(target.optimize(o), index.optimize(o)).at(this); }
+    public void forEachChild(Consumer<ASTNode> f) {
+        f.accept(target);
+        f.accept(index);
+    }
+    public ASTNode map(UnaryOperator<ASTNode> f) { return new IndexNode(f.apply(target), f.apply(index)).at(this); }
+    public void compile(Compiler c, int target) {
+        this.target.compile(c, target);
+        int i = c.allocReg();
+        index.compile(c, i);
+        c.emit(OpCode.GETINDEX, target, target, i);
+        c.freeRegs(i);
+    }
+}
+
+// === Index Assignment ===
+// `target[index] = value` for a list element or a dict key, evaluated in that order;
+// the value is the expression's value.
+class IndexAssignNode extends ASTNode {
+    public final ASTNode target, index, value;
+    public IndexAssignNode(ASTNode target, ASTNode index, ASTNode value) {
+        this.target = target; this.index = index; this.value = value;
+    }
+    public ASTNode optimize(Optimizer o) {
+        return new IndexAssignNode(target.optimize(o), index.optimize(o), value.optimize(o)).at(this);
+    }
+    public void forEachChild(Consumer<ASTNode> f) {
+        f.accept(target);
+        f.accept(index);
+        f.accept(value);
+    }
+    public ASTNode map(UnaryOperator<ASTNode> f) {
+        return new IndexAssignNode(f.apply(target), f.apply(index), f.apply(value)).at(this);
+    }
+    public void compile(Compiler c, int target) {
+        int list = c.allocReg();
+        this.target.compile(c, list);
+        int i = c.allocReg();
+        index.compile(c, i);
+        value.compile(c, target);
+        c.emit(OpCode.SETINDEX, list, i, target);
+        c.freeRegs(list);
+    }
+}
+
+// === Counted For Loop ===
+// `for (let i = a; i < limit; i = i + n)`, or the same counting down with > or >= and
+// `- n`, where n is a positive literal, the body never assigns i and nothing in the
+// loop can change the limit. The limit is evaluated once, and the step and test of
+// every iteration run as one FORLOOP instruction. Built by ForNode.optimize().
+class CountedForNode extends ASTNode {
+    public final LetNode init;
+    public final Operator op;       // the test: <, <=, > or >=
+    public final ASTNode limit, body;
+    public final int step;
+    public final List<OnceNode> hoisted;
+
+    private CountedForNode(LetNode init, Operator op, ASTNode limit, int step, ASTNode body, List<OnceNode> hoisted) {
+        this.init = init; this.op = op; this.limit = limit; this.step = step; this.body = body;
+        this.hoisted = hoisted;
+    }
+
+    // The counted form of a for-loop with the given (optimized) parts, or null.
+    static CountedForNode match(Optimizer o, Optimizer.Effects loop, ASTNode init, ASTNode condition,
+                                ASTNode update, ASTNode body, List<OnceNode> hoisted) {
+        if (!(init instanceof LetNode) || !(condition instanceof BinaryOpNode) || !(update instanceof AssignNode)) {
+            return null;
+        }
+        String var = ((LetNode) init).name;
+        BinaryOpNode test = (BinaryOpNode) condition;
+        AssignNode assign = (AssignNode) update;
+        if (!isVariable(test.left, var) || !assign.name.equals(var) || !(assign.expr instanceof BinaryOpNode)) {
+            return null;
+        }
+        BinaryOpNode next = (BinaryOpNode) assign.expr;
+        if (!isVariable(next.left, var) || !(next.right instanceof NumberNode)) return null;
+        int amount = ((NumberNode) next.right).value;
+        if (amount <= 0) return null;
+        boolean up = test.op == Operator.LT || test.op == Operator.LE;
+        boolean down = test.op == Operator.GT || test.op == Operator.GE;
+        if (!(next.op == Operator.ADD && up) && !(next.op == Operator.SUB && down)) return null;
+
+        Optimizer.Effects inBody = o.effectsOf(body);
+        if (inBody.writes.contains(var) || inBody.definesFunctions) return null;
+        if (!o.isLoopConstant(test.right, loop)) return null;
+        return new CountedForNode((LetNode) init, test.op, test.right, up ? amount : -amount, body, hoisted);
+    }
+
+    private static boolean isVariable(ASTNode node, String name) {
+        return node instanceof VariableNode && ((VariableNode) node).name.equals(name);
+    }
+
+    public void forEachChild(Consumer<ASTNode> f) {
+        f.accept(init);
+        f.accept(limit);
+        f.accept(body);
+    }
+    public ASTNode map(UnaryOperator<ASTNode> f) {
+        return new CountedForNode((LetNode) f.apply(init), op, f.apply(limit), step, f.apply(body), hoisted).at(this);
+    }
+
+    public void compile(Compiler c, int target) {
+        Set<String> locals = new LinkedHashSet<>();
+        init.declareLocals(locals);
+        body.declareLocals(locals);
+        c.beginScope(locals, Collections.emptySet());
+        init.compile(c, target);
+        int mark = c.beginHoisted(hoisted);
+        int lim = c.allocReg();
+        limit.compile(c, lim);
+        int t = c.allocReg();
+        c.allocReg();
+        int cmp = op.opcode;
+        c.emitGet(t, init.name);
+        c.emit(cmp, t, t, lim);
+        int toExit = c.emitJump(OpCode.JMPF, t);
+        int loop = c.here();
+        body.compile(c, target);
+        c.markLine(this);
+        c.emit(OpCode.FORLOOP, c.localSlot(init.name), lim, step, cmp, t, loop);
+        c.patchJump(toExit);
+        c.endHoisted(hoisted, mark);
+        c.endScope();
+        c.emit(OpCode.NULL, target);
+    }
+}
+
+// === Loop-Invariant Expression ===
+// A pure expression inside a loop that gives the same value on every iteration (see
+// Optimizer.hoist). The first iteration that reaches it evaluates it; later ones reuse
+// that value, so a loop that never reaches it never evaluates it either. The loop
+// lists it in its `hoisted` nodes and reserves its registers; the node is tied to
+// that loop by identity, so rewrites after hoisting leave it alone.
+class OnceNode extends ASTNode {
+    public final ASTNode expr;
+    public OnceNode(ASTNode expr) { this.expr = expr; }
+    public boolean isSideEffectFree() { return true; }
+    public void forEachChild(Consumer<ASTNode> f) { f.accept(expr); }
+    public void compile(Compiler c, int target) {
+        int flag = c.onceRegister(this);
+        if (flag < 0) {
+            expr.compile(c, target);
+            return;
+        }
+        int toCompute = c.emitJump(OpCode.JMPF, flag);
+        c.emit(OpCode.MOVE, target, flag + 1);
+        int toEnd = c.emitJump(OpCode.JMP);
+        c.patchJump(toCompute);
+        expr.compile(c, target);
+        c.emit(OpCode.MOVE, flag + 1, target);
+        c.emit(OpCode.CONST, flag, c.constant(Boolean.TRUE));
+        c.patchJump(toEnd);
     }
 }
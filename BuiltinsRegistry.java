@@ -1,41 +1,172 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
 
 // === Built-in Function Interface ===
 // All built-in functions implement this interface.
-// It's a functional interface so we can use lambdas below.
+// call(args) is the general form. Builtins with a fixed number of parameters
+// implement Builtin0/1/2 instead, which the VM calls with the argument values
+// directly, without building a list. A varargs builtin's list is a read-only view
+// of the caller's registers, valid only until the builtin returns: copy it to keep it.
 interface BuiltinFunction {
     Object call(List<Object> args);
+
+    // Number of arguments the builtin takes, or -1 for any number.
+    // The VM reports a wrong count against the call site's name.
+    default int arity() { return -1; }
+
+    default Object call0() { return call(Collections.emptyList()); }
+    default Object call1(Object a) { return call(Collections.singletonList(a)); }
+    default Object call2(Object a, Object b) { return call(Arrays.asList(a, b)); }
+}
+
+@FunctionalInterface
+interface Builtin0 extends BuiltinFunction {
+    Object call0();
+    default int arity() { return 0; }
+    default Object call(List<Object> args) {
+        BuiltinsRegistry.checkArity(args, 0);
+        return call0();
+    }
+}
+
+@FunctionalInterface
+interface Builtin1 extends BuiltinFunction {
+    Object call1(Object a);
+    default int arity() { return 1; }
+    default Object call(List<Object> args) {
+        BuiltinsRegistry.checkArity(args, 1);
+        return call1(args.get(0));
+    }
+}
+
+@FunctionalInterface
+interface Builtin2 extends BuiltinFunction {
+    Object call2(Object a, Object b);
+    default int arity() { return 2; }
+    default Object call(List<Object> args) {
+        BuiltinsRegistry.checkArity(args, 2);
+        return call2(args.get(0), args.get(1));
+    }
+}
+
+// === Numeric Builtins ===
+// Builtins with a primitive signature. The VM runs them straight on unboxed register
+// cells: integer arguments go through the long form (if there is one) and produce an
+// integer, anything involving a double goes through the double form. Non-numbers
+// take the boxed path, which reports the error.
+final class UnaryNumeric implements Builtin1 {
+    final String name;
+    final LongUnaryOperator ints;       // null: integers are converted to double
+    final DoubleUnaryOperator doubles;
+
+    UnaryNumeric(String name, LongUnaryOperator ints, DoubleUnaryOperator doubles) {
+        this.name = name;
+        this.ints = ints;
+        this.doubles = doubles;
+    }
+
+    public Object call1(Object a) {
+        if (ints != null && (a instanceof Integer || a instanceof Long)) {
+            return ints.applyAsLong(((Number) a).longValue());
+        }
+        return doubles.applyAsDouble(BuiltinsRegistry.toDouble(a, name));
+    }
+}
+
+final class BinaryNumeric implements Builtin2 {
+    final String name;
+    final LongBinaryOperator ints;
+    final DoubleBinaryOperator doubles;
+
+    BinaryNumeric(String name, LongBinaryOperator ints, DoubleBinaryOperator doubles) {
+        this.name = name;
+        this.ints = ints;
+        this.doubles = doubles;
+    }
+
+    public Object call2(Object a, Object b) {
+        if ((a instanceof Integer || a instanceof Long) && (b instanceof Integer || b instanceof Long)) {
+            return ints.applyAsLong(((Number) a).longValue(), ((Number) b).longValue());
+        }
+        return doubles.applyAsDouble(BuiltinsRegistry.toDouble(a, name), BuiltinsRegistry.toDouble(b, name));
+    }
+}
+
+// === Higher-Order Builtins ===
+// Builtins that call a function of the script by name, such as map(). The VM hands
+// them a Caller that runs the function to completion, within the builtin's own step,
+// and returns its result. The function may not wait (recv, sleep and the like): the
+// task cannot suspend in the middle of a builtin.
+interface Caller {
+    // What `function` names where the builtin was called: a UserFunction, a
+    // BuiltinFunction, or null.
+    Object resolve(String function);
+
+    Object call(String function, Object arg);
+}
+
+@FunctionalInterface
+interface HigherOrder extends BuiltinFunction {
+    Object call2(Object a, Object b, Caller caller);
+    default int arity() { return 2; }
+    default Object call(List<Object> args) {
+        throw new RuntimeException("This builtin can only be called from a script");
+    }
 }
 
 // === Builtins Registry ===
-// Registers all built-in functions into a given environment.
-// Call BuiltinsRegistry.register(env) once on the root environment.
+// The table of standard built-in functions. Builtins hold no state of their own, so
+// one table serves every program run (see Environment's shared builtins); spawn() and
+// flush(), which belong to a run's scheduler and output, are added by ExecutionContext.
 class BuiltinsRegistry {
 
-    public static void register(Environment env) {
+    // Builtins whose result depends only on their arguments and which have no other
+    // effect, so the Optimizer may run a call to them fewer times than it is written.
+    // get(), has() and sum() read a list or dict, so they are pure only while it does
+    // not change: a loop that changes one hoists nothing that reads variables (see
+    // Optimizer).
+    static final Set<String> PURE = Set.of("len", "str", "int", "double", "abs", "max", "min", "sqrt", "get", "sum",
+            "has");
+
+    // The remaining builtins, including spawn() and flush().
+    static final Set<String> EFFECTFUL = Set.of("channel", "send", "recv", "join", "spawn", "flush", "yield", "sleep",
+            "push", "set", "slice", "sort", "map", "keys", "remove");
+
+    // Builtins that may change the contents of a list or dict: map() may, through the
+    // function it calls.
+    static final Set<String> MUTATORS = Set.of("push", "set", "sort", "map", "remove");
+
+    // The standard builtins: one immutable table that every root environment shares.
+    static final Map<String, BuiltinFunction> STANDARD = Collections.unmodifiableMap(standard());
+
+    private static Map<String, BuiltinFunction> standard() {
+        Map<String, BuiltinFunction> builtins = new HashMap<>();
 
-        // len(s) — length of a string
-        env.defineBuiltin("len", args -> {
-            checkArgCount("len", args, 1);
-            Object arg = args.get(0);
+        // len(s) — length of a string or a list, or number of keys in a dict
+        builtins.put("len", (Builtin1) arg -> {
             if (arg instanceof String) return ((String) arg).length();
-            throw new RuntimeException("len() expects a string, got: " + arg);
+            if (arg instanceof ListValue) return ((ListValue) arg).size();
+            if (arg instanceof DictValue) return ((DictValue) arg).size();
+            throw new RuntimeException("len() expects a string, a list or a dict, got: " + arg);
         });
 
         // str(x) — convert anything to its string representation
-        env.defineBuiltin("str", args -> {
-            checkArgCount("str", args, 1);
-            return String.valueOf(args.get(0));
-        });
+        builtins.put("str", (Builtin1) String::valueOf);
 
         // int(x) — convert to integer (truncates doubles, parses strings)
-        env.defineBuiltin("int", args -> {
-            checkArgCount("int", args, 1);
-            Object arg = args.get(0);
-            if (arg instanceof Integer) return arg;
-            if (arg instanceof Double) return ((Double) arg).intValue();
+        builtins.put("int", (Builtin1) arg -> {
+            if (arg instanceof Integer || arg instanceof Long) return arg;
+            if (arg instanceof Double) return ((Double) arg).longValue();
             if (arg instanceof String) {
-                try { return Integer.parseInt((String) arg); }
+                try { return Long.parseLong((String) arg); }
                 catch (NumberFormatException e) {
                     throw new RuntimeException("int() cannot convert: " + arg);
                 }
@@ -44,11 +175,9 @@ class BuiltinsRegistry {
         });
 
         // double(x) — convert to floating-point number
-        env.defineBuiltin("double", args -> {
-            checkArgCount("double", args, 1);
-            Object arg = args.get(0);
+        builtins.put("double", (Builtin1) arg -> {
             if (arg instanceof Double) return arg;
-            if (arg instanceof Integer) return ((Integer) arg).doubleValue();
+            if (arg instanceof Integer || arg instanceof Long) return ((Number) arg).doubleValue();
             if (arg instanceof String) {
                 try { return Double.parseDouble((String) arg); }
                 catch (NumberFormatException e) {
@@ -59,47 +188,119 @@ class BuiltinsRegistry {
         });
 
         // abs(x) — absolute value of a number
-        env.defineBuiltin("abs", args -> {
-            checkArgCount("abs", args, 1);
-            Object arg = args.get(0);
-            if (arg instanceof Integer) return Math.abs((Integer) arg);
-            if (arg instanceof Double) return Math.abs((Double) arg);
-            throw new RuntimeException("abs() expects a number, got: " + arg);
+        builtins.put("abs", new UnaryNumeric("abs", Math::abs, Math::abs));
+
+        // max(a, b) — larger of two numbers (an integer if both are integers)
+        builtins.put("max", new BinaryNumeric("max", Math::max, Math::max));
+
+        // min(a, b) — smaller of two numbers
+        builtins.put("min", new BinaryNumeric("min", Math::min, Math::min));
+
+        // sqrt(x) — square root, always returns a double
+        builtins.put("sqrt", new UnaryNumeric("sqrt", null, Math::sqrt));
+
+        // === Lists ===
+
+        // push(xs, v) — append v to xs, returning xs
+        builtins.put("push", (Builtin2) (list, value) -> {
+            toList(list, "push").add(value);
+            return list;
         });
 
-        // max(a, b) — larger of two numbers
-        env.defineBuiltin("max", args -> {
-            checkArgCount("max", args, 2);
-            double a = toDouble(args.get(0), "max");
-            double b = toDouble(args.get(1), "max");
-            double result = Math.max(a, b);
-            // Keep integer type if both inputs were integers
-            if (args.get(0) instanceof Integer && args.get(1) instanceof Integer)
-                return (int) result;
-            return result;
+        // get(xs, i) — element i of list xs, or the value of key i in dict xs: xs[i]
+        builtins.put("get", (Builtin2) (xs, i) -> {
+            if (xs instanceof DictValue) return ((DictValue) xs).get(i);
+            return toList(xs, "get").get(toIndex(i, "get"));
         });
 
-        // min(a, b) — smaller of two numbers
-        env.defineBuiltin("min", args -> {
-            checkArgCount("min", args, 2);
-            double a = toDouble(args.get(0), "min");
-            double b = toDouble(args.get(1), "min");
-            double result = Math.min(a, b);
-            if (args.get(0) instanceof Integer && args.get(1) instanceof Integer)
-                return (int) result;
-            return result;
+        // set(xs, i, v) — xs[i] = v for a list or a dict; returns v
+        builtins.put("set", args -> {
+            checkArgCount("set", args, 3);
+            Object xs = args.get(0);
+            if (xs instanceof DictValue) ((DictValue) xs).put(args.get(1), args.get(2));
+            else toList(xs, "set").set(toIndex(args.get(1), "set"), args.get(2));
+            return args.get(2);
         });
 
-        // sqrt(x) — square root, always returns a double
-        env.defineBuiltin("sqrt", args -> {
-            checkArgCount("sqrt", args, 1);
-            double x = toDouble(args.get(0), "sqrt");
-            return Math.sqrt(x);
+        // slice(xs, from, to) — a new list of the elements from index `from` up to `to`
+        builtins.put("slice", args -> {
+            checkArgCount("slice", args, 3);
+            return toList(args.get(0), "slice").slice(toIndex(args.get(1), "slice"), toIndex(args.get(2), "slice"));
+        });
+
+        // sum(xs) — total of a list of numbers
+        builtins.put("sum", (Builtin1) list -> toList(list, "sum").sum());
+
+        // sort(xs) — sort numbers or strings in place, returning xs
+        builtins.put("sort", (Builtin1) list -> {
+            toList(list, "sort").sort();
+            return list;
+        });
+
+        // map(xs, "f") — a new list of f(x) for each element x, where f names a
+        // function or builtin taking one argument
+        builtins.put("map", (HigherOrder) (list, name, caller) -> {
+            ListValue xs = toList(list, "map");
+            if (!(name instanceof String)) throw new RuntimeException("map() expects a function name, got: " + name);
+            Object fn = caller.resolve((String) name);
+            if (fn instanceof UnaryNumeric) return xs.map((UnaryNumeric) fn);
+            return xs.map(x -> caller.call((String) name, x));
+        });
+
+        // === Dicts ===
+
+        // keys(d) — the keys of d in the order they were added, as a new list
+        builtins.put("keys", (Builtin1) d -> toDict(d, "keys").keys());
+
+        // has(d, k) — whether d has key k
+        builtins.put("has", (Builtin2) (d, key) -> toDict(d, "has").has(key));
+
+        // remove(d, k) — remove key k from d; whether it was there
+        builtins.put("remove", (Builtin2) (d, key) -> toDict(d, "remove").remove(key));
+
+        // === Task communication ===
+
+        // channel() / channel(n) — unbounded channel, or one buffering at most n values
+        builtins.put("channel", args -> {
+            if (args.isEmpty()) return new Channel(Channel.UNBOUNDED);
+            checkArgCount("channel", args, 1);
+            return new Channel((int) toDouble(args.get(0), "channel"));
+        });
+
+        // send(ch, v) — send v, waiting while the channel is full
+        builtins.put("send", (Builtin2) (ch, value) -> toChannel(ch, "send").send(value));
+
+        // recv(ch) — next value, waiting while the channel is empty
+        builtins.put("recv", (Builtin1) ch -> toChannel(ch, "recv").recv());
+
+        // join(task) — result of a spawned task, waiting until it finishes
+        builtins.put("join", (Builtin1) arg -> {
+            if (arg instanceof TaskHandle) return ((TaskHandle) arg).join();
+            throw new RuntimeException("join() expects a task from spawn(), got: " + arg);
+        });
+
+        // yield() — let every other ready task run before continuing
+        builtins.put("yield", (Builtin0) () -> Suspend.YIELD);
+
+        // sleep(ms) — suspend this task for at least ms milliseconds without using the CPU
+        builtins.put("sleep", (Builtin1) ms -> {
+            if (!(ms instanceof Number))
+                throw new RuntimeException("sleep() expects a number of milliseconds");
+            return Suspend.sleep(((Number) ms).longValue());
         });
+
+        return builtins;
     }
 
     // === Helpers ===
 
+    // Argument count check for builtins called with a list from outside the VM.
+    static void checkArity(List<Object> args, int expected) {
+        if (args.size() != expected) {
+            throw new RuntimeException("Builtin expects " + expected + " argument(s), got " + args.size());
+        }
+    }
+
     private static void checkArgCount(String name, List<Object> args, int expected) {
         if (args.size() != expected) {
             throw new RuntimeException(
@@ -108,9 +309,28 @@ class BuiltinsRegistry {
         }
     }
 
-    private static double toDouble(Object o, String funcName) {
-        if (o instanceof Integer) return (Integer) o;
-        if (o instanceof Double) return (Double) o;
+    private static Channel toChannel(Object o, String funcName) {
+        if (o instanceof Channel) return (Channel) o;
+        throw new RuntimeException(funcName + "() expects a channel, got: " + o);
+    }
+
+    private static ListValue toList(Object o, String funcName) {
+        if (o instanceof ListValue) return (ListValue) o;
+        throw new RuntimeException(funcName + "() expects a list, got: " + o);
+    }
+
+    private static DictValue toDict(Object o, String funcName) {
+        if (o instanceof DictValue) return (DictValue) o;
+        throw new RuntimeException(funcName + "() expects a dict, got: " + o);
+    }
+
+    private static long toIndex(Object o, String funcName) {
+        if (o instanceof Integer || o instanceof Long) return ((Number) o).longValue();
+        throw new RuntimeException(funcName + "() expects an integer index, got: " + o);
+    }
+
+    static double toDouble(Object o, String funcName) {
+        if (o instanceof Integer || o instanceof Long || o instanceof Double) return ((Number) o).doubleValue();
         throw new RuntimeException(funcName + "() expects a number, got: " + o);
     }
 }
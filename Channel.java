@@ -0,0 +1,120 @@
+import java.util.ArrayDeque;
+
+// === Channel ===
+// A FIFO queue between tasks. Values are passed by reference: send() stores the
+// value itself in a ring buffer, or hands it straight to a receiver that is already
+// waiting. A task that cannot proceed parks (see Suspend) instead of polling:
+//   recv() on an empty channel parks until a value arrives;
+//   send() on a full channel parks until a receiver makes room.
+// capacity 0 is a rendezvous channel: every send waits for its receiver.
+//
+// All state is guarded by the channel's monitor, so tasks on different
+// ParallelScheduler workers can share a channel.
+class Channel {
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final int capacity;
+    private Object[] ring;
+    private int head = 0;       // index of the oldest buffered value
+    private int count = 0;
+
+    private final ArrayDeque<Waker> receivers = new ArrayDeque<>();
+    private final ArrayDeque<PendingSend> senders = new ArrayDeque<>();
+
+    private static class PendingSend {
+        final Object value;
+        final Waker waker;
+
+        PendingSend(Object value, Waker waker) {
+            this.value = value;
+            this.waker = waker;
+        }
+    }
+
+    public Channel(int capacity) {
+        if (capacity < 0) throw new RuntimeException("channel() capacity must be >= 0, got " + capacity);
+        this.capacity = capacity;
+        this.ring = new Object[capacity == UNBOUNDED ? 16 : Math.max(capacity, 1)];
+    }
+
+    // Returns null once the value is delivered or buffered, or a Suspend to park on.
+    public synchronized Object send(Object value) {
+        if (trySend(value)) return null;
+        return Suspend.park(waker -> {
+            // The state may have changed between send() and parking, so check again.
+            synchronized (this) {
+                if (trySend(value)) waker.wake(null);
+                else senders.add(new PendingSend(value, waker));
+            }
+        });
+    }
+
+    // Returns the next value, or a Suspend whose wake-up delivers it.
+    public synchronized Object recv() {
+        if (canReceive()) return take();
+        return Suspend.park(waker -> {
+            synchronized (this) {
+                if (canReceive()) waker.wake(take());
+                else receivers.add(waker);
+            }
+        });
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    private boolean trySend(Object value) {
+        Waker receiver = receivers.poll();
+        if (receiver != null) {
+            receiver.wake(value);
+            return true;
+        }
+        if (count < capacity) {
+            push(value);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean canReceive() {
+        return count > 0 || !senders.isEmpty();
+    }
+
+    private Object take() {
+        if (count == 0) {
+            // Rendezvous: take the value directly from a waiting sender.
+            PendingSend s = senders.poll();
+            s.waker.wake(null);
+            return s.value;
+        }
+        Object value = ring[head];
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        count--;
+        // A slot just opened up: move one blocked sender's value into the buffer.
+        PendingSend s = senders.poll();
+        if (s != null) {
+            push(s.value);
+            s.waker.wake(null);
+        }
+        return value;
+    }
+
+    private void push(Object value) {
+        if (count == ring.length) {
+            // Only unbounded channels outgrow their ring.
+            Object[] bigger = new Object[ring.length * 2];
+            for (int i = 0; i < count; i++) bigger[i] = ring[(head + i) % ring.length];
+            ring = bigger;
+            head = 0;
+        }
+        ring[(head + count) % ring.length] = value;
+        count++;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "<channel " + count + "/" + (capacity == UNBOUNDED ? "unbounded" : String.valueOf(capacity)) + ">";
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.Arrays;
+import java.util.List;
+
+// === Compiled Code Unit ===
+// The output of the Compiler: a flat instruction array plus its constant pool.
+// The main program and every function body compile to their own Chunk.
+// Chunks are immutable once built, so any number of tasks can run one at once; the
+// only state that changes is self-tuning (quickened opcodes, inline caches), and
+// every version of it is valid.
+public class Chunk {
+    public final String name;
+    public final List<String> params;
+    public final String[] locals;  // slot layout of the scope this chunk runs in; params first
+    public final int[] code;
+    public final Object[] constants;
+    public final int numRegs;      // registers needed by one activation
+    public final boolean definesFunctions; // contains DEFFUN, so its scopes can be captured
+    final InlineCache[] inlineCaches;      // one per cached call site
+    final Memo memo;                       // results of a pure function, or null
+    final int[] lines;                     // (first pc, source line) pairs in pc order
+
+    public Chunk(String name, List<String> params, String[] locals, int[] code, Object[] constants, int numRegs,
+                 int callSites, int memoCapacity) {
+        this(name, params, locals, code, constants, numRegs, callSites, memoCapacity, new int[0]);
+    }
+
+    public Chunk(String name, List<String> params, String[] locals, int[] code, Object[] constants, int numRegs,
+                 int callSites, int memoCapacity, int[] lines) {
+        this.name = name;
+        this.params = params;
+        this.locals = locals;
+        this.code = code;
+        this.constants = constants;
+        this.numRegs = numRegs;
+        this.inlineCaches = new InlineCache[callSites];
+        this.memo = memoCapacity > 0 ? new Memo(memoCapacity) : null;
+        this.lines = lines;
+
+        boolean defines = false;
+        for (int pc = 0; pc < code.length; pc += 1 + OpCode.OPERANDS[code[pc]]) {
+            if (code[pc] == OpCode.DEFFUN) defines = true;
+        }
+        this.definesFunctions = defines;
+    }
+
+    // The source line of the instruction at `pc`, or 0 if unknown.
+    public int lineAt(int pc) {
+        int lo = 0, hi = lines.length / 2 - 1, line = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lines[2 * mid] <= pc) {
+                line = lines[2 * mid + 1];
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return line;
+    }
+
+    // Human-readable listing of this chunk and every nested function chunk. The
+    // source line is shown where it changes.
+    public String disassemble() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("== ").append(name).append(params).append(" locals=").append(Arrays.toString(locals)).append(" regs=").append(numRegs).append(" ==\n");
+        int pc = 0;
+        int shownLine = 0;
+        while (pc < code.length) {
+            int op = code[pc];
+            int line = lineAt(pc);
+            sb.append(String.format("%4s %04d  %-7s", line != shownLine ? line : "", pc, OpCode.NAMES[op]));
+            shownLine = line;
+            for (int i = 1; i <= OpCode.OPERANDS[op]; i++) {
+                sb.append(' ').append(code[pc + i]);
+            }
+            sb.append('\n');
+            pc += 1 + OpCode.OPERANDS[op];
+        }
+        for (Object k : constants) {
+            if (k instanceof Chunk) sb.append(((Chunk) k).disassemble());
+        }
+        return sb.toString();
+    }
+}
+
+// === Inline Cache ===
+// What one call site last resolved its function name to (a builtin or a user
+// function), valid while the program's top-level functions are unchanged: same root
+// environment and same function version. Entries are immutable, so a site can be
+// re-pointed while tasks on other threads read it.
+final class InlineCache {
+    final Environment root;
+    final int version;
+    final Object target;    // BuiltinFunction or UserFunction
+
+    InlineCache(Environment root, int version, Object target) {
+        this.root = root;
+        this.version = version;
+        this.target = target;
+    }
+}
@@ -0,0 +1,312 @@
+import java.util.*;
+
+// === Compiler ===
+// Lowers a parsed AST into register bytecode once, before execution.
+// Each node compiles itself through ASTNode.compile(c, target), leaving its value
+// in register `target`. Temporaries are allocated stack-wise above the current top,
+// so a node may freely use any register at or above nextReg() while it compiles.
+//
+// The compiler also resolves variables: every `let` name gets a slot in the scope
+// that declares it (the program, a function body, or a for-loop), and each use of
+// a name compiles to a (depth, index) pair instead of a by-name lookup.
+public class Compiler {
+    private final String name;
+    private final List<String> params;
+    private final Scope enclosing;
+    private Scope scope;
+
+    private int[] code = new int[64];
+    private int size = 0;
+
+    private int line = 0;               // source line of the code being emitted
+    private int tableLine = 0;          // line of the last entry in `lines`
+    private int[] lines = new int[16];  // (first pc, line) pairs; see Chunk.lineAt()
+    private int lineCount = 0;
+
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    private int nextReg = 0;
+    private int maxRegs = 0;
+
+    private int callSites = 0;
+    private int memoCapacity = Memo.DEFAULT_CAPACITY;  // per memoized function; 0 turns memoization off
+    private boolean memoize;                           // this chunk is a function worth memoizing
+
+    // Register pairs (flag, value) reserved for the hoisted expressions of the loops
+    // currently being compiled; see OnceNode.
+    private final Map<ASTNode, Integer> onceRegs = new IdentityHashMap<>();
+
+    public Compiler() {
+        this("<main>", Collections.emptyList(), null);
+    }
+
+    private Compiler(String name, List<String> params, Scope enclosing) {
+        this.name = name;
+        this.params = params;
+        this.enclosing = enclosing;
+    }
+
+    // Compile a whole program. Its value is the value of the last statement.
+    public Chunk compile(ASTNode program) {
+        Set<String> locals = new LinkedHashSet<>();
+        program.declareLocals(locals);
+        scope = new Scope(enclosing, params);
+        for (String local : locals) {
+            if (!scope.names.contains(local)) scope.names.add(local);
+        }
+        program.declareFunctions(scope.functions);
+
+        int result = allocReg();
+        program.compile(this, result);
+        emit(OpCode.RETURN, result);
+        return toChunk();
+    }
+
+    // Compile a function body into its own chunk. A function the Optimizer marked for
+    // memoization gets a result cache.
+    public Chunk compileFunction(String name, List<String> params, ASTNode body, boolean memoize) {
+        Compiler c = new Compiler(name, params, scope);
+        c.line = line;
+        c.memoCapacity = memoCapacity;
+        c.memoize = memoize;
+        return c.compile(body);
+    }
+
+    // Entries kept per memoized function; 0 disables memoization.
+    public Compiler setMemoCapacity(int capacity) {
+        this.memoCapacity = capacity;
+        return this;
+    }
+
+    // Build a tiny chunk that calls `name` with already-evaluated argument values.
+    // Used by spawn() to start a task on a function with runtime arguments.
+    public static Chunk callStub(String name, List<Object> args) {
+        Compiler c = new Compiler("<spawn " + name + ">", Collections.emptyList(), null);
+        c.scope = new Scope(null, Collections.emptyList());
+        int result = c.allocReg();
+        int base = c.nextReg;
+        for (Object arg : args) {
+            int r = c.allocReg();
+            if (arg == null) c.emit(OpCode.NULL, r);
+            else c.emit(OpCode.CONST, r, c.constant(arg));
+        }
+        c.emit(OpCode.CALL, result, c.constant(name), base, args.size(), c.callSite(name));
+        c.emit(OpCode.RETURN, result);
+        return c.toChunk();
+    }
+
+    // True while compiling a function body (where `return f(...)` can be a tail call).
+    public boolean inFunction() {
+        return enclosing != null;
+    }
+
+    // === Variables ===
+
+    // Load variable `name` into register `target`.
+    public void emitGet(int target, String name) {
+        int[] slot = resolve(name);
+        if (slot != null) emit(OpCode.GETSLOT, target, slot[0], slot[1]);
+        else emit(OpCode.GETVAR, target, constant(name));
+    }
+
+    // Assign register `source` to the existing variable `name`.
+    public void emitSet(String name, int source) {
+        int[] slot = resolve(name);
+        if (slot != null) emit(OpCode.SETSLOT, slot[0], slot[1], source);
+        else emit(OpCode.SETVAR, constant(name), source);
+    }
+
+    // Compile `name = name <op> rhs` as a single read-modify-write of the variable,
+    // which is atomic when the variable lives in a shared scope. Returns false, having
+    // emitted nothing, if `name` is not a resolved slot.
+    public boolean emitUpdate(String name, int op, ASTNode rhs, int target) {
+        int[] slot = resolve(name);
+        if (slot == null) return false;
+        rhs.compile(this, target);
+        int scratch = allocReg();
+        emit(OpCode.UPDSLOT, slot[0], slot[1], op, target, scratch);
+        freeRegs(scratch);
+        return true;
+    }
+
+    // Declare `name` in the current scope with the value in register `source`.
+    public void emitDefine(String name, int source) {
+        int index = scope.names.lastIndexOf(name);
+        if (index >= 0) emit(OpCode.DEFSLOT, index, source);
+        else emit(OpCode.DEFVAR, constant(name), source);
+    }
+
+    // Open a nested runtime scope holding the given `let` names and function
+    // definitions (a for-loop).
+    public void beginScope(Collection<String> names, Set<String> functions) {
+        scope = new Scope(scope, names);
+        scope.functions.addAll(functions);
+        emit(OpCode.ENTER, constant(scope.names.toArray(new String[0])));
+    }
+
+    public void endScope() {
+        scope = scope.parent;
+        emit(OpCode.EXIT);
+    }
+
+    // Index of `name` in the innermost scope, which must declare it.
+    public int localSlot(String name) {
+        return scope.names.lastIndexOf(name);
+    }
+
+    // Find the (depth, index) slot of a name, or null if it is only known at runtime.
+    private int[] resolve(String name) {
+        int depth = 0;
+        for (Scope s = scope; s != null; s = s.parent, depth++) {
+            int index = s.names.lastIndexOf(name);
+            if (index >= 0) return new int[] { depth, index };
+        }
+        return null;
+    }
+
+    // === Call sites ===
+
+    // Allocate an inline cache for a call to `name`, or return -1 if the call must look
+    // the name up every time. A site is cached only when no scope between it and the
+    // program's top level defines a function called `name`: the call then always
+    // resolves to a top-level function or builtin, which only changes when a top-level
+    // definition bumps the program's function version.
+    public int callSite(String name) {
+        for (Scope s = scope; s.parent != null; s = s.parent) {
+            if (s.functions.contains(name)) return -1;
+        }
+        return callSites++;
+    }
+
+    // === Loop-invariant expressions ===
+
+    // Reserve the registers of a loop's hoisted expressions and clear their flags, so
+    // each is recomputed once per run of the loop. Emitted before the loop's first
+    // instruction; returns the mark to pass to endHoisted().
+    public int beginHoisted(List<OnceNode> hoisted) {
+        int mark = nextReg;
+        for (OnceNode node : hoisted) {
+            int flag = allocReg();
+            allocReg();
+            emit(OpCode.NULL, flag);
+            onceRegs.put(node, flag);
+        }
+        return mark;
+    }
+
+    public void endHoisted(List<OnceNode> hoisted, int mark) {
+        for (OnceNode node : hoisted) onceRegs.remove(node);
+        freeRegs(mark);
+    }
+
+    // The flag register of a hoisted expression (its value follows it), or -1 if no
+    // enclosing loop reserved one.
+    public int onceRegister(OnceNode node) {
+        Integer flag = onceRegs.get(node);
+        return flag == null ? -1 : flag;
+    }
+
+    // === Registers ===
+
+    public int allocReg() {
+        int r = nextReg++;
+        if (nextReg > maxRegs) maxRegs = nextReg;
+        return r;
+    }
+
+    // Release every register at or above `reg`.
+    public void freeRegs(int reg) {
+        nextReg = reg;
+    }
+
+    public int nextReg() {
+        return nextReg;
+    }
+
+    // === Constant pool ===
+
+    public int constant(Object value) {
+        // Function chunks are never shared; everything else is deduplicated by value.
+        if (value instanceof Chunk) {
+            constants.add(value);
+            return constants.size() - 1;
+        }
+        Integer index = constantIndex.get(value);
+        if (index != null) return index;
+        constants.add(value);
+        constantIndex.put(value, constants.size() - 1);
+        return constants.size() - 1;
+    }
+
+    // === Emission ===
+
+    public void emit(int op, int... operands) {
+        if (line != tableLine) addLine();
+        ensureCode(1 + operands.length);
+        code[size++] = op;
+        for (int operand : operands) code[size++] = operand;
+    }
+
+    // Current code position, used as a jump target.
+    public int here() {
+        return size;
+    }
+
+    // Emit a jump with a placeholder target; returns the slot to patch later.
+    public int emitJump(int op, int... operands) {
+        emit(op, operands);
+        emitOperand(-1);
+        return size - 1;
+    }
+
+    // Point a previously emitted jump at the current position.
+    public void patchJump(int slot) {
+        code[slot] = size;
+    }
+
+    private void emitOperand(int value) {
+        ensureCode(1);
+        code[size++] = value;
+    }
+
+    // === Line Table ===
+    // Code emitted from here on comes from `node`'s source line. Lines are tracked per
+    // statement (and loop header), which is as fine as stack traces and the profiler
+    // need.
+    public void markLine(ASTNode node) {
+        if (node.line > 0) line = node.line;
+    }
+
+    private void addLine() {
+        if (lineCount + 2 > lines.length) lines = Arrays.copyOf(lines, lines.length * 2);
+        lines[lineCount++] = size;
+        lines[lineCount++] = line;
+        tableLine = line;
+    }
+
+    private void ensureCode(int extra) {
+        if (size + extra > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, size + extra));
+        }
+    }
+
+    private Chunk toChunk() {
+        return new Chunk(name, params, scope.names.toArray(new String[0]),
+                Arrays.copyOf(code, size), constants.toArray(), Math.max(maxRegs, 1), callSites,
+                memoize ? memoCapacity : 0, Arrays.copyOf(lines, lineCount));
+    }
+
+    // === Compile-time Scope ===
+    // Mirrors the runtime Environment chain: one per program, function call and for-loop.
+    private static class Scope {
+        final Scope parent;
+        final List<String> names;
+        final Set<String> functions = new HashSet<>();   // names of functions defined here
+
+        Scope(Scope parent, Collection<String> names) {
+            this.parent = parent;
+            this.names = new ArrayList<>(names);
+        }
+    }
+}
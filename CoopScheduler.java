@@ -1,27 +1,135 @@
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.concurrent.locks.LockSupport;
 
-public class CoopScheduler {
+public class CoopScheduler implements Scheduler {
 
-    private final Queue<CoroTask> ready = new LinkedList<>();
+    // Adaptive budgets: a turn should take about TARGET_TURN_NANOS, which bounds how
+    // long a ready task waits to be run to (number of ready tasks) x TARGET_TURN_NANOS.
+    private static final long TARGET_TURN_NANOS = 200_000;
+    private static final int MIN_BUDGET = 16;
+    private static final int MAX_BUDGET = 1 << 16;
 
+    private final Queue<CoroTask> ready = new ArrayDeque<>();
+    private final boolean adaptive;
+    private int budget;
+
+    // Tasks waiting for a deadline, earliest first (a delay queue).
+    private final PriorityQueue<Sleeper> sleeping = new PriorityQueue<>();
+    private long sleeperSeq = 0;
+
+    // Tasks waiting for a Waker. They are not held anywhere — only counted.
+    private int parked = 0;
+
+    // Adaptive step budget per turn.
+    public CoopScheduler() {
+        this.adaptive = true;
+        this.budget = 1024;
+    }
+
+    // Fixed step budget per turn; 1 switches tasks after every single step.
+    public CoopScheduler(int budget) {
+        this.adaptive = false;
+        this.budget = Math.max(budget, 1);
+    }
+
+    @Override
     public void submit(CoroTask task) {
         ready.add(task);
     }
 
     // One OS thread runs ALL tasks — no Thread() anywhere
+    @Override
     public void run() {
-        while (!ready.isEmpty()) {
+        while (!ready.isEmpty() || !sleeping.isEmpty() || parked > 0) {
+            wakeSleepers();
+            if (ready.isEmpty()) {
+                if (sleeping.isEmpty()) {
+                    throw new RuntimeException("Deadlock: " + parked + " task(s) blocked with nothing left to wake them");
+                }
+                // Nothing runnable: block the thread until the next sleeper is due.
+                LockSupport.parkNanos(sleeping.peek().wakeAt - System.nanoTime());
+                continue;
+            }
+
             CoroTask task = ready.poll();
-            boolean hasMore = task.step(); // run ONE step of the task
+            boolean hasMore;
+            if (!adaptive) {
+                hasMore = task.step(budget);
+            } else if (ready.isEmpty()) {
+                // Nobody is waiting, so there is no latency to protect.
+                hasMore = task.step(MAX_BUDGET);
+            } else {
+                long start = System.nanoTime();
+                hasMore = task.step(budget); // run up to `budget` steps of the task
+                adapt(System.nanoTime() - start);
+            }
             if (hasMore) {
-                ready.add(task); // put it back to run again later
+                reschedule(task);
             }
         }
     }
 
+    // Put a task that still has work back where its suspension (if any) says.
+    private void reschedule(CoroTask task) {
+        Suspend s = task.takeSuspension();
+        if (s == null || s == Suspend.YIELD) {
+            ready.add(task); // put it back to run again later
+        } else if (s.isSleep()) {
+            sleeping.add(new Sleeper(System.nanoTime() + s.delayNanos, sleeperSeq++, task));
+        } else {
+            parked++;
+            s.onPark.accept(new Waker() {
+                private boolean woken = false;
+
+                // Must be called on the scheduler thread (from a builtin or a step).
+                public void wake(Object value) {
+                    if (woken) return;
+                    woken = true;
+                    parked--;
+                    task.resume(value);
+                    ready.add(task);
+                }
+            });
+        }
+    }
+
+    private void wakeSleepers() {
+        long now = System.nanoTime();
+        while (!sleeping.isEmpty() && sleeping.peek().wakeAt - now <= 0) {
+            ready.add(sleeping.poll().task);
+        }
+    }
+
+    // Halve the budget when turns run long, double it when they are well under target.
+    private void adapt(long elapsed) {
+        if (elapsed > TARGET_TURN_NANOS) {
+            budget = Math.max(MIN_BUDGET, budget / 2);
+        } else if (elapsed < TARGET_TURN_NANOS / 2) {
+            budget = Math.min(MAX_BUDGET, budget * 2);
+        }
+    }
+
+    private static class Sleeper implements Comparable<Sleeper> {
+        final long wakeAt;
+        final long seq;     // FIFO among tasks due at the same time
+        final CoroTask task;
+
+        Sleeper(long wakeAt, long seq, CoroTask task) {
+            this.wakeAt = wakeAt;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        public int compareTo(Sleeper o) {
+            int c = Long.compare(wakeAt - o.wakeAt, 0);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
     public static void main(String[] args) {
-        CoopScheduler scheduler = new CoopScheduler();
+        CoopScheduler scheduler = new CoopScheduler(1);
 
         // Task A: counts to 3
         int[] aCount = {0};
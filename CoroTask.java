@@ -1,4 +1,22 @@
 // A "task" that knows how to pause and resume itself
 public interface CoroTask {
     boolean step(); // returns true = more work to do, false = done
+
+    // Run up to `budget` steps in one turn. A task may end its turn early (for example
+    // when it yields); the return value has the same meaning as step().
+    default boolean step(int budget) {
+        for (int i = 0; i < budget; i++) {
+            if (!step()) return false;
+        }
+        return true;
+    }
+
+    // If the last turn ended because the task suspended itself, the reason; else null.
+    // Reading it clears it.
+    default Suspend takeSuspension() {
+        return null;
+    }
+
+    // Deliver the result of the call that suspended this task, before it runs again.
+    default void resume(Object value) {}
 }
@@ -0,0 +1,253 @@
+import java.util.Arrays;
+
+// === Dict Value ===
+// The value of a dict literal `{"a": 1, "b": 2}`: a hash map from strings and integers
+// to any value, which keeps its keys in insertion order.
+//
+// The layout is a compact open-addressing table. The entries themselves live in dense
+// parallel arrays, in the order they were added: the key, its hash (computed once, so
+// probing compares hashes before keys and growing never rehashes a string), and the
+// value as a tag and payload cell (see Values), so numbers are stored unboxed. A
+// separate power-of-two `index` maps a hash to an entry number with linear probing,
+// and is at most half full, so a lookup usually reads one or two index slots.
+// While every key is an integer the keys are a long[] and are compared as numbers;
+// the first string key moves them to an Object[] for good, integers boxed as Long.
+// Removing a key leaves a hole in the entries, which is squeezed out when the entries
+// are next resized.
+//
+// Dicts are mutable and passed by reference; two dicts are equal only if they are the
+// same dict. Tasks that share a dict must not change it at the same time.
+final class DictValue {
+    private static final int MIN_ENTRIES = 8;
+    private static final int EMPTY = -1;        // an unused index slot
+    private static final Object REMOVED = new Object() {
+        @Override public String toString() { return "<removed>"; }
+    };
+
+    private int[] index = newIndex(2 * MIN_ENTRIES);
+    private long[] longKeys = new long[MIN_ENTRIES];    // while every key is an integer
+    private Object[] keys;                              // after that: String or Long
+    private int[] hashes = new int[MIN_ENTRIES];
+    // Entry values as cells; tags[e] == REMOVED for a removed entry. Read directly by
+    // the VM for entries returned by find().
+    Object[] tags = new Object[MIN_ENTRIES];
+    long[] prims = new long[MIN_ENTRIES];
+    private int count;      // entries used, removed ones included
+    private int size;       // live entries
+
+    int size() {
+        return size;
+    }
+
+    // === Lookup ===
+
+    // The entry number holding `key`, or -1.
+    int find(long key) {
+        int h = hash(key);
+        if (keys != null) return find(Long.valueOf(key), h);
+        int mask = index.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            int e = index[i];
+            if (e == EMPTY) return -1;
+            if (longKeys[e] == key) return e;
+        }
+    }
+
+    int find(Object key) {
+        if (key instanceof Integer || key instanceof Long) return find(((Number) key).longValue());
+        if (!(key instanceof String)) return -1;
+        return keys == null ? -1 : find(key, hash((String) key));
+    }
+
+    private int find(Object key, int h) {
+        int mask = index.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            int e = index[i];
+            if (e == EMPTY) return -1;
+            if (hashes[e] == h && (keys[e] == key || keys[e].equals(key))) return e;
+        }
+    }
+
+    boolean has(Object key) {
+        return find(key) >= 0;
+    }
+
+    // The value for `key`; an error if there is none.
+    Object get(Object key) {
+        int e = find(checkKey(key));
+        if (e < 0) throw missing(key);
+        return Values.box(tags[e], prims[e]);
+    }
+
+    static RuntimeException missing(Object key) {
+        return new RuntimeException("Key not found: " + key);
+    }
+
+    // === Update ===
+
+    // Set the value for an integer key to a cell.
+    void putLong(long key, Object tag, long prim) {
+        int e = find(key);
+        if (e < 0) {
+            e = append(hash(key));
+            if (keys != null) keys[e] = key;
+            else longKeys[e] = key;
+            insert(e);
+        }
+        tags[e] = tag;
+        prims[e] = prim;
+    }
+
+    // Set the value for a key (an integer or a string) to a cell.
+    void put(Object key, Object tag, long prim) {
+        checkKey(key);
+        if (!(key instanceof String)) {
+            putLong(((Number) key).longValue(), tag, prim);
+            return;
+        }
+        if (keys == null) toObjectKeys();
+        int h = hash((String) key);
+        int e = find(key, h);
+        if (e < 0) {
+            e = append(h);
+            keys[e] = key;
+            insert(e);
+        }
+        tags[e] = tag;
+        prims[e] = prim;
+    }
+
+    void put(Object key, Object value) {
+        put(key, Values.tag(value), Values.payload(value));
+    }
+
+    // Remove `key`; false if it was not there.
+    boolean remove(Object key) {
+        int e = find(key);
+        if (e < 0) return false;
+        int mask = index.length - 1;
+        int i = hashes[e] & mask;
+        while (index[i] != e) i = (i + 1) & mask;
+        // Backward-shift deletion: move later entries of the probe run into the gap,
+        // so lookups never need tombstones.
+        for (int j = (i + 1) & mask; index[j] != EMPTY; j = (j + 1) & mask) {
+            int home = hashes[index[j]] & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                index[i] = index[j];
+                i = j;
+            }
+        }
+        index[i] = EMPTY;
+        tags[e] = REMOVED;
+        prims[e] = 0;
+        if (keys != null) keys[e] = null;
+        size--;
+        return true;
+    }
+
+    // Claim the next entry for a new key with hash `h`, growing first if full.
+    private int append(int h) {
+        if (count == hashes.length) resize();
+        int e = count++;
+        hashes[e] = h;
+        size++;
+        return e;
+    }
+
+    private void insert(int e) {
+        int mask = index.length - 1;
+        int i = hashes[e] & mask;
+        while (index[i] != EMPTY) i = (i + 1) & mask;
+        index[i] = e;
+    }
+
+    // Squeeze out removed entries, double the arrays if still more than half full,
+    // and rebuild the index from the cached hashes.
+    private void resize() {
+        int live = 0;
+        for (int e = 0; e < count; e++) {
+            if (tags[e] == REMOVED) continue;
+            if (keys != null) keys[live] = keys[e];
+            else longKeys[live] = longKeys[e];
+            hashes[live] = hashes[e];
+            tags[live] = tags[e];
+            prims[live] = prims[e];
+            live++;
+        }
+        Arrays.fill(tags, live, count, null);
+        if (keys != null) Arrays.fill(keys, live, count, null);
+        count = live;
+        int capacity = live * 2 > hashes.length ? hashes.length * 2 : hashes.length;
+        if (capacity != hashes.length) {
+            if (keys != null) keys = Arrays.copyOf(keys, capacity);
+            else longKeys = Arrays.copyOf(longKeys, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            tags = Arrays.copyOf(tags, capacity);
+            prims = Arrays.copyOf(prims, capacity);
+        }
+        index = newIndex(2 * capacity);
+        for (int e = 0; e < count; e++) insert(e);
+    }
+
+    // Switch to boxed keys, before the first string key is added. Integer keys hash
+    // the same either way, so the index stays as it is.
+    private void toObjectKeys() {
+        keys = new Object[hashes.length];
+        for (int e = 0; e < count; e++) {
+            if (tags[e] != REMOVED) keys[e] = longKeys[e];
+        }
+        longKeys = null;
+    }
+
+    // === Views ===
+
+    // The keys in insertion order, as a new list.
+    ListValue keys() {
+        ListValue list = new ListValue();
+        for (int e = 0; e < count; e++) {
+            if (tags[e] == REMOVED) continue;
+            if (keys == null) list.addLong(longKeys[e]);
+            else list.add(keys[e]);
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int e = 0; e < count; e++) {
+            if (tags[e] == REMOVED) continue;
+            if (sb.length() > 1) sb.append(", ");
+            sb.append(keys == null ? (Object) longKeys[e] : keys[e]).append(": ");
+            Object value = Values.box(tags[e], prims[e]);
+            sb.append(value == this ? "{...}" : String.valueOf(value));
+        }
+        return sb.append('}').toString();
+    }
+
+    // === Helpers ===
+
+    private static int[] newIndex(int size) {
+        int[] index = new int[size];
+        Arrays.fill(index, EMPTY);
+        return index;
+    }
+
+    // String keys: String.hashCode (itself cached by the string) with its high bits
+    // folded in, as the index only uses the low ones.
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    // Integer keys: Long.hashCode spread by a multiplicative hash, so runs of
+    // consecutive keys don't fill one run of slots. The same for boxed Long keys.
+    private static int hash(long key) {
+        return (int) ((key ^ (key >>> 32)) * 0x9E3779B97F4A7C15L >>> 32);
+    }
+
+    private static Object checkKey(Object key) {
+        if (key instanceof String || key instanceof Integer || key instanceof Long) return key;
+        throw new RuntimeException("Dict keys must be strings or integers, got: " + key);
+    }
+}
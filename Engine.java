@@ -0,0 +1,100 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// === Embedding Engine ===
+// The interpreter as a library: compile a script once, then run it as often as needed
+// with different inputs.
+//
+//     Engine engine = new Engine(4);
+//     Engine.Script rule = engine.compile("let total = price * qty\ntotal > 100");
+//     Object big = engine.run(rule, Map.of("price", 30, "qty", 5));   // true
+//
+// Bindings become global variables of the run, and a run returns the value of the
+// script's last statement. An Engine keeps a pool of warm execution contexts, so a run
+// reuses a scheduler and root environment instead of building them. Any number of
+// threads may call run() at once: each run takes its own context, so runs never share
+// state, and a run executes entirely on the calling thread. Errors in a script are
+// thrown as RuntimeException.
+public final class Engine {
+    private final BlockingQueue<ExecutionContext> idle;
+    private final long stackBudget;
+    private final Metrics metrics;
+
+    // Keep up to `poolSize` idle contexts; about one per thread calling run() is enough.
+    public Engine(int poolSize) {
+        this(poolSize, TaskStack.DEFAULT_BUDGET, null);
+    }
+
+    // `stackBudget` limits each task's call stack, in bytes, as in Interpreter.
+    public Engine(int poolSize, long stackBudget) {
+        this(poolSize, stackBudget, null);
+    }
+
+    // Every run also records into `metrics`, if not null, so one Metrics covers all
+    // callers.
+    public Engine(int poolSize, long stackBudget, Metrics metrics) {
+        if (poolSize < 1) throw new IllegalArgumentException("pool size must be at least 1");
+        this.idle = new ArrayBlockingQueue<>(poolSize);
+        this.stackBudget = stackBudget;
+        this.metrics = metrics;
+        for (int i = 0; i < poolSize; i++) idle.offer(newContext());
+    }
+
+    // A compiled script. Immutable, so one Script can be run by many threads at once.
+    public static final class Script {
+        final Chunk program;
+
+        private Script(Chunk program) {
+            this.program = program;
+        }
+
+        // Bytecode listing, for debugging.
+        public String disassemble() {
+            return program.disassemble();
+        }
+    }
+
+    public Script compile(String source) {
+        return compile(new StringReader(source));
+    }
+
+    public Script compile(Path source) throws IOException {
+        try (Reader in = Files.newBufferedReader(source)) {
+            return compile(in);
+        }
+    }
+
+    private Script compile(Reader source) {
+        ASTNode program = Optimizer.optimize(new Parser(new Lexer(source)).parse());
+        return new Script(new Compiler().setMemoCapacity(Memo.DEFAULT_CAPACITY).compile(program));
+    }
+
+    // Run `script` with `bindings` as its global variables and return its value.
+    public Object run(Script script, Map<String, ?> bindings) {
+        ExecutionContext context = idle.poll();
+        if (context == null) context = newContext();
+        try {
+            return context.run(script.program, bindings);
+        } finally {
+            idle.offer(context);    // dropped if the pool is already full
+        }
+    }
+
+    public Object run(Script script) {
+        return run(script, Map.of());
+    }
+
+    // Each context buffers its prints separately and writes them to standard output
+    // by the end of its run.
+    private ExecutionContext newContext() {
+        ExecutionContext context = new ExecutionContext(1, stackBudget, Output.stdout());
+        context.setMetrics(metrics);
+        return context;
+    }
+}
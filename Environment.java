@@ -1,43 +1,244 @@
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Environment {
+    // Marks a slot whose `let` has not run yet. Reading or assigning an unset slot
+    // falls through to the enclosing scope, exactly like a missing HashMap key did.
+    static final Object UNSET = new Object();
+    private static final String[] NO_SLOTS = new String[0];
+
     private final Environment parent;
-    private final Map<String, Object> variables = new HashMap<>();
-    private final Map<String, UserFunction> functions = new HashMap<>();
-    private final Map<String, BuiltinFunction> builtins = new HashMap<>();
+    final Environment root;     // the program's top-level environment
+
+    // Variables declared with `let` in this scope, resolved by the Compiler to a slot index.
+    // Numbers are stored unboxed: see Values for the slots/prims cell encoding.
+    final String[] slotNames;
+    final Object[] slots;
+    final long[] prims;
+
+    // Fallback for names that were not resolved at compile time (dynamic globals).
+    private Map<String, Object> variables;
 
-    private boolean returnFlag = false;
-    private Object returnValue = null;
+    // Created on first definition: most scopes (every function call) define neither.
+    private Map<String, UserFunction> functions;
+    private Map<String, BuiltinFunction> builtins;
+    // Root only: read-only builtins shared with other environments, searched after
+    // this environment's own.
+    private final Map<String, BuiltinFunction> sharedBuiltins;
 
-    // Shared call stack — all environments in the same program share one stack.
-    private final CallStack callStack;
+    // Root only: bumped whenever a top-level function is (re)defined, which
+    // invalidates the inline caches of call sites that resolved through it.
+    private AtomicInteger functionVersion;
 
-    // === Root environment constructor ===
-    // Creates a fresh call stack for a new program run.
+    // === Root environment constructors ===
     public Environment() {
+        this(NO_SLOTS);
+    }
+
+    public Environment(String[] slotNames) {
+        this(slotNames, Collections.emptyMap());
+    }
+
+    public Environment(String[] slotNames, Map<String, BuiltinFunction> sharedBuiltins) {
         this.parent = null;
-        this.callStack = new CallStack();
+        this.root = this;
+        this.sharedBuiltins = sharedBuiltins;
+        this.functionVersion = new AtomicInteger();
+        this.slotNames = slotNames;
+        this.slots = newSlots(slotNames);
+        this.prims = new long[slotNames.length];
     }
 
-    // === Nested environment constructor (for scopes) ===
-    // Inherits the parent's call stack so the whole program shares one.
+    // === Nested environment constructors (for scopes) ===
     public Environment(Environment parent) {
+        this(parent, NO_SLOTS);
+    }
+
+    public Environment(Environment parent, String[] slotNames) {
         this.parent = parent;
-        this.callStack = parent.callStack;
+        this.root = parent.root;
+        this.sharedBuiltins = null;
+        this.slotNames = slotNames;
+        this.slots = newSlots(slotNames);
+        this.prims = new long[slotNames.length];
+    }
+
+    private static Object[] newSlots(String[] slotNames) {
+        Object[] slots = new Object[slotNames.length];
+        Arrays.fill(slots, UNSET);
+        return slots;
+    }
+
+    // === Enclosing scope (null for the root environment) ===
+    public Environment getParent() {
+        return parent;
+    }
+
+    // === Sharing between threads ===
+    // An environment is confined to one thread unless share() is called. Under the
+    // ParallelScheduler the root environment is shared by every task: each slot read
+    // and write then holds one of a fixed set of stripe locks, so a cell's tag and
+    // payload are always seen together and a write by one task is visible to the next
+    // reader. Functions and dynamic globals move to thread-safe maps. Scopes created
+    // by a task (function calls, loops) are never shared and keep the lock-free path.
+    private static final int STRIPES = 16;
+    private Object[] locks;
+
+    void share() {
+        if (locks != null) return;
+        locks = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++) locks[i] = new Object();
+        functions = functions == null ? new ConcurrentHashMap<>() : new ConcurrentHashMap<>(functions);
+        variables = Collections.synchronizedMap(variables == null ? new HashMap<>() : variables);
+    }
+
+    // The lock guarding slot `index`, or null if this environment is not shared.
+    Object lockFor(int index) {
+        return locks == null ? null : locks[index % STRIPES];
+    }
+
+    // === Slot access (compiled code) ===
+    // `depth` counts scopes outward from this one, `index` is the slot within that scope.
+    // The *Slot methods copy cells straight between a slot and a task register.
+
+    // Copy slot `index` into register `reg`. Returns false if the slot is unset.
+    boolean loadSlot(int index, Object[] r, long[] p, int reg) {
+        Object lock = lockFor(index);
+        if (lock == null) return loadCell(index, r, p, reg);
+        synchronized (lock) {
+            return loadCell(index, r, p, reg);
+        }
+    }
+
+    // Assign register `reg` to slot `index`. Returns false (and stores nothing) if unset.
+    boolean storeSlot(int index, Object[] r, long[] p, int reg) {
+        Object lock = lockFor(index);
+        if (lock == null) return storeCell(index, r, p, reg);
+        synchronized (lock) {
+            return storeCell(index, r, p, reg);
+        }
+    }
+
+    // Define slot `index` from register `reg`.
+    void defineSlot(int index, Object[] r, long[] p, int reg) {
+        Object lock = lockFor(index);
+        if (lock == null) {
+            slots[index] = r[reg];
+            prims[index] = p[reg];
+            return;
+        }
+        synchronized (lock) {
+            slots[index] = r[reg];
+            prims[index] = p[reg];
+        }
+    }
+
+    private boolean loadCell(int index, Object[] r, long[] p, int reg) {
+        Object v = slots[index];
+        if (v == UNSET) return false;
+        r[reg] = v;
+        p[reg] = prims[index];
+        return true;
+    }
+
+    private boolean storeCell(int index, Object[] r, long[] p, int reg) {
+        if (slots[index] == UNSET) return false;
+        slots[index] = r[reg];
+        prims[index] = p[reg];
+        return true;
+    }
+
+    // Boxed value of slot `index`, or UNSET.
+    private Object readSlot(int index) {
+        Object lock = lockFor(index);
+        if (lock == null) return Values.box(slots[index], prims[index]);
+        synchronized (lock) {
+            return Values.box(slots[index], prims[index]);
+        }
+    }
+
+    // Make this function scope fresh for another call of the same function, as if it
+    // had just been created: slots from `keep` on are unset and dynamic variables are
+    // dropped. Only valid for a scope no closure has captured.
+    void reenter(int keep) {
+        Arrays.fill(slots, keep, slots.length, UNSET);
+        variables = null;
+    }
+
+    // Return a root environment to how it was before its program ran, to run the same
+    // program in it again: every slot unset, no dynamic globals and no functions.
+    void reset() {
+        Arrays.fill(slots, UNSET);
+        if (variables != null) variables.clear();
+        if (functions != null) functions.clear();
+        functionVersion.incrementAndGet();
+    }
+
+    // Boxed value of slot `index` (UNSET if never defined), for stack traces.
+    Object slotValue(int index) {
+        return readSlot(index);
+    }
+
+    // Write a boxed value to slot `index`. With onlyIfSet, unset slots are left alone
+    // and false is returned.
+    private boolean writeSlot(int index, Object value, boolean onlyIfSet) {
+        Object lock = lockFor(index);
+        if (lock == null) return writeCell(index, value, onlyIfSet);
+        synchronized (lock) {
+            return writeCell(index, value, onlyIfSet);
+        }
+    }
+
+    private boolean writeCell(int index, Object value, boolean onlyIfSet) {
+        if (onlyIfSet && slots[index] == UNSET) return false;
+        slots[index] = Values.tag(value);
+        prims[index] = Values.payload(value);
+        return true;
+    }
+
+    // The environment `depth` scopes out from this one.
+    Environment scope(int depth) {
+        Environment env = this;
+        for (int i = 0; i < depth; i++) env = env.parent;
+        return env;
     }
 
-    // === Get the shared call stack ===
-    public CallStack getCallStack() {
-        return callStack;
+    Object getFromParent(String name) {
+        if (parent != null) return parent.get(name);
+        throw new RuntimeException("Variable not defined: " + name);
+    }
+
+    void assignInParent(String name, Object value) {
+        if (parent != null) parent.assign(name, value);
+        else throw new RuntimeException("Variable not defined: " + name);
+    }
+
+    // Later slots win, matching the compiler's resolution of duplicate parameter names.
+    private int slotOf(String name) {
+        for (int i = slotNames.length - 1; i >= 0; i--) {
+            if (slotNames[i].equals(name)) return i;
+        }
+        return -1;
     }
 
+    // === Name access (dynamic globals, builtins, embedding) ===
+
     /**
      * Define a new variable in the current environment scope.
      * @param name Variable name
      * @param value Variable value
      */
     public void define(String name, Object value) {
+        int slot = slotOf(name);
+        if (slot >= 0) {
+            writeSlot(slot, value, false);
+            return;
+        }
+        if (variables == null) variables = new HashMap<>();
         variables.put(name, value);
     }
 
@@ -46,12 +247,12 @@ public class Environment {
      * Throws if the variable is not defined.
      */
     public void assign(String name, Object value) {
-        if (variables.containsKey(name)) {
+        int slot = slotOf(name);
+        if (slot >= 0 && writeSlot(slot, value, true)) return;
+        if (variables != null && variables.containsKey(name)) {
             variables.put(name, value);
-        } else if (parent != null) {
-            parent.assign(name, value);
         } else {
-            throw new RuntimeException("Variable not defined: " + name);
+            assignInParent(name, value);
         }
     }
 
@@ -63,20 +264,26 @@ public class Environment {
         if (name == null || name.isEmpty()) {
             throw new RuntimeException("Variable name is null or empty in Environment.get()");
         }
-        if (variables.containsKey(name)) {
-            return variables.get(name);
+        int slot = slotOf(name);
+        Object value = slot >= 0 ? readSlot(slot) : UNSET;
+        if (value != UNSET) {
+            return value;
         }
-        if (parent != null) {
-            return parent.get(name);
+        if (variables != null && variables.containsKey(name)) {
+            return variables.get(name);
         }
-        throw new RuntimeException("Variable not defined: " + name);
+        return getFromParent(name);
     }
 
     /**
      * Check if variable is defined in current scope or any parent.
      */
     public boolean hasVariable(String name) {
-        if (variables.containsKey(name)) {
+        int slot = slotOf(name);
+        if (slot >= 0 && readSlot(slot) != UNSET) {
+            return true;
+        }
+        if (variables != null && variables.containsKey(name)) {
             return true;
         }
         return parent != null && parent.hasVariable(name);
@@ -86,7 +293,15 @@ public class Environment {
      * Define a user-defined function in the current environment scope.
      */
     public void defineFunction(String name, UserFunction func) {
+        if (functions == null) functions = new HashMap<>();
         functions.put(name, func);
+        if (parent == null) functionVersion.incrementAndGet();
+    }
+
+    // Current version of the top-level functions; read before resolving a name so a
+    // definition that races with the lookup leaves the cache entry already stale.
+    int functionVersion() {
+        return root.functionVersion.get();
     }
 
     /**
@@ -94,8 +309,9 @@ public class Environment {
      * Returns null if not found.
      */
     public UserFunction getFunction(String name) {
-        if (functions.containsKey(name)) {
-            return functions.get(name);
+        UserFunction func = functions == null ? null : functions.get(name);
+        if (func != null) {
+            return func;
         }
         if (parent != null) {
             return parent.getFunction(name);
@@ -107,6 +323,7 @@ public class Environment {
      * Register a built-in function in this environment.
      */
     public void defineBuiltin(String name, BuiltinFunction func) {
+        if (builtins == null) builtins = new HashMap<>();
         builtins.put(name, func);
     }
 
@@ -115,34 +332,13 @@ public class Environment {
      * Returns null if not found.
      */
     public BuiltinFunction getBuiltin(String name) {
-        if (builtins.containsKey(name)) {
-            return builtins.get(name);
+        BuiltinFunction func = builtins == null ? null : builtins.get(name);
+        if (func != null) {
+            return func;
         }
         if (parent != null) {
             return parent.getBuiltin(name);
         }
-        return null;
-    }
-
-    /**
-     * Set the return flag and value used to indicate a return from function execution.
-     */
-    public void setReturnFlag(boolean flag, Object val) {
-        this.returnFlag = flag;
-        this.returnValue = val;
-    }
-
-    /**
-     * Check if the return flag is set.
-     */
-    public boolean isReturnFlag() {
-        return returnFlag;
-    }
-
-    /**
-     * Get the return value associated with the return flag.
-     */
-    public Object getReturnValue() {
-        return returnValue;
+        return sharedBuiltins.get(name);
     }
 }
@@ -1,3 +0,0 @@
-public interface EvalStep {
-    void execute(EvalTask task);
-}
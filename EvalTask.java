@@ -1,31 +1,872 @@
-import java.util.Stack;
+import java.util.AbstractList;
+import java.util.Objects;
 
+// === Call Frame ===
+// One activation of a chunk: where it is executing, which registers it owns,
+// and which environment its variables live in. Records are reused by TaskStack.
+class Frame {
+    Chunk chunk;
+    int base;           // first register of this frame in the task's register file
+    int returnReg;      // caller register that receives the result (absolute)
+    boolean isCall;     // true for a user function call (counted in the call stack)
+    Environment env;
+    Environment callEnv; // env on entry, holding the parameters; env moves with loop scopes
+    int pc;
+    int cost;           // bytes charged against the task's stack budget
+    Memo memo;          // where to remember this call's result, with memoKey
+    Object memoKey;
+    long started;       // System.nanoTime() at the call, when recording Metrics
+
+    void reset(Chunk chunk, Environment env, int base, int returnReg, boolean isCall) {
+        this.chunk = chunk;
+        this.env = env;
+        this.callEnv = env;
+        this.base = base;
+        this.returnReg = returnReg;
+        this.isCall = isCall;
+        this.pc = 0;
+        this.memo = null;
+        this.memoKey = null;
+    }
+
+    void clear() {
+        chunk = null;
+        env = null;
+        callEnv = null;
+        memo = null;
+        memoKey = null;
+    }
+}
+
+// === Evaluation Task ===
+// A coroutine that executes compiled bytecode. Each step() runs one instruction;
+// step(budget) runs a whole scheduler turn in a tight loop. A turn also ends early
+// after a print, so tasks that print in lockstep still interleave line by line, and
+// when a builtin suspends the task (see Suspend).
+// Registers are split into an Object cell and a long cell so numbers stay unboxed
+// (see Values); only values that leave the VM are boxed.
 public class EvalTask implements CoroTask {
-    public final Stack<EvalStep> instructions = new Stack<>();
-    public final Stack<Object> operands = new Stack<>();
-    
+    private TaskStack stack;
+
+    private Suspend suspension;     // set by a builtin that suspended this task
+    private int resumeReg;          // register that receives the suspended call's result
+    private TaskHandle handle;      // completed with the task's result, if joinable
+    private Output output = Output.STDOUT;
+    private Profiler profiler;      // told about each turn, if profiling
+    private Metrics metrics;        // what this task does is recorded here, if set
+    private long steps;             // instructions executed so far (only with metrics)
+    private long created;           // System.nanoTime() when metrics were attached
+    private long readySince;        // when the task last became ready to run
+    private final RegisterArgs args = new RegisterArgs();
+
     public boolean isYielding = false;
     public boolean isDone = false;
-    
-    public EvalTask(ASTNode rootNode, Environment env) {
-        rootNode.pushEval(this, env);
+
+    public EvalTask(Chunk chunk, Environment env) {
+        this(chunk, env, TaskStack.DEFAULT_BUDGET);
     }
-    
-    public void push(EvalStep step) {
-        instructions.push(step);
+
+    // stackBudget: approximate bytes this task's calls may use before a stack overflow.
+    public EvalTask(Chunk chunk, Environment env, long stackBudget) {
+        stack = TaskStack.acquire(0, chunk.numRegs, stackBudget);
+        stack.push(chunk, env, 0, -1, false);
+    }
+
+    // Complete `handle` with this task's result when it finishes.
+    public void setHandle(TaskHandle handle) {
+        this.handle = handle;
+    }
+
+    // Send this task's prints to `output` instead of standard output.
+    void setOutput(Output output) {
+        this.output = output;
+    }
+
+    // Let `profiler` sample this task while it runs.
+    void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    // Record what this task does in `metrics`. Call before submitting the task.
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        this.created = this.readySince = System.nanoTime();
     }
-    
+
+    // This task's call stack with source lines, for the profiler's sampler thread.
+    String sampleStack() {
+        TaskStack stack = this.stack;
+        return stack == null ? null : stack.sample();
+    }
+
     @Override
     public boolean step() {
-        if (instructions.isEmpty() || isDone) {
+        return step(1);
+    }
+
+    @Override
+    public boolean step(int budget) {
+        if (isDone) {
             return false;
         }
-        
-        isYielding = false; 
-        
-        EvalStep current = instructions.pop();
-        current.execute(this);
-        
-        return !instructions.isEmpty() && !isDone;
+
+        isYielding = false;
+
+        if (profiler != null) profiler.enter(this);
+        if (metrics != null) metrics.queueWait.record(System.nanoTime() - readySince);
+        int i = 0;
+        try {
+            for (; i < budget && !isYielding && !isDone; i++) {
+                execute();
+            }
+        } catch (RuntimeException e) {
+            if (stack.callDepth() > 0) throw withTrace(e);
+            throw e;
+        } finally {
+            if (profiler != null) profiler.exit(this);
+            if (metrics != null) endTurn(i);
+        }
+
+        return !isDone;
+    }
+
+    // Count the turn's steps, and note when the task will be ready again: now if it
+    // goes back to the ready queue, at the deadline if it sleeps, on resume() if parked.
+    private void endTurn(int executed) {
+        steps += executed;
+        metrics.steps.add(executed);
+        long now = System.nanoTime();
+        if (isDone) {
+            metrics.taskFinished(steps, now - created);
+        } else {
+            readySince = suspension != null && suspension.isSleep() ? now + suspension.delayNanos : now;
+        }
+    }
+
+    // Execute the instruction at the current frame's pc.
+    private void execute() {
+        Frame f = stack.top();
+        int[] code = f.chunk.code;
+        Object[] k = f.chunk.constants;
+        Object[] r = stack.regs;
+        long[] p = stack.prims;
+        int base = f.base;
+        int pc = f.pc;
+
+        int op = code[pc++];
+        switch (op) {
+            case OpCode.CONST:
+                set(base + code[pc], k[code[pc + 1]]);
+                pc += 2;
+                break;
+            case OpCode.CONSTI:
+                r[base + code[pc]] = Values.INT;
+                p[base + code[pc]] = code[pc + 1];
+                pc += 2;
+                break;
+            case OpCode.NULL:
+                r[base + code[pc++]] = null;
+                break;
+            case OpCode.MOVE: {
+                int a = base + code[pc], b = base + code[pc + 1];
+                r[a] = r[b];
+                p[a] = p[b];
+                pc += 2;
+                break;
+            }
+            case OpCode.GETVAR:
+                set(base + code[pc], f.env.get((String) k[code[pc + 1]]));
+                pc += 2;
+                break;
+            case OpCode.GETSLOT: {
+                int a = base + code[pc];
+                Environment env = f.env.scope(code[pc + 1]);
+                int index = code[pc + 2];
+                if (!env.loadSlot(index, r, p, a)) {
+                    set(a, env.getFromParent(env.slotNames[index]));
+                }
+                pc += 3;
+                break;
+            }
+            case OpCode.SETSLOT: {
+                Environment env = f.env.scope(code[pc]);
+                int index = code[pc + 1], a = base + code[pc + 2];
+                if (!env.storeSlot(index, r, p, a)) {
+                    env.assignInParent(env.slotNames[index], get(a));
+                }
+                pc += 3;
+                break;
+            }
+            case OpCode.DEFSLOT:
+                f.env.defineSlot(code[pc], r, p, base + code[pc + 1]);
+                pc += 2;
+                break;
+            case OpCode.UPDSLOT: {
+                Environment env = f.env.scope(code[pc]);
+                int index = code[pc + 1];
+                Object lock = env.lockFor(index);
+                if (lock == null) {
+                    update(env, index, code[pc + 2], base + code[pc + 3], base + code[pc + 4]);
+                } else {
+                    synchronized (lock) {
+                        update(env, index, code[pc + 2], base + code[pc + 3], base + code[pc + 4]);
+                    }
+                }
+                pc += 5;
+                break;
+            }
+            case OpCode.FORLOOP: {
+                Environment env = f.env;
+                int index = code[pc], lim = base + code[pc + 1], step = code[pc + 2], t = base + code[pc + 4];
+                env.loadSlot(index, r, p, t);
+                boolean again;
+                if (r[t] == Values.INT && r[lim] == Values.INT) {
+                    long x = p[t] + step, y = p[lim];
+                    setInteger(t, x);
+                    env.storeSlot(index, r, p, t);
+                    switch (code[pc + 3]) {
+                        case OpCode.LT: again = x < y; break;
+                        case OpCode.LE: again = x <= y; break;
+                        case OpCode.GT: again = x > y; break;
+                        default: again = x >= y; break;
+                    }
+                } else {
+                    r[t + 1] = Values.INT;
+                    p[t + 1] = step;
+                    binary(OpCode.ADD, t, t, t + 1);
+                    env.storeSlot(index, r, p, t);
+                    binary(code[pc + 3], t + 1, t, lim);
+                    again = Values.isTruthy(r[t + 1], p[t + 1]);
+                }
+                pc = again ? code[pc + 5] : pc + 6;
+                break;
+            }
+            case OpCode.DEFVAR:
+                f.env.define((String) k[code[pc]], get(base + code[pc + 1]));
+                pc += 2;
+                break;
+            case OpCode.SETVAR:
+                f.env.assign((String) k[code[pc]], get(base + code[pc + 1]));
+                pc += 2;
+                break;
+
+            case OpCode.ADD:
+            case OpCode.SUB:
+            case OpCode.MUL:
+            case OpCode.EQ:
+            case OpCode.NE:
+            case OpCode.LT:
+            case OpCode.LE:
+            case OpCode.GT:
+            case OpCode.GE: {
+                int a = base + code[pc], b = base + code[pc + 1], c = base + code[pc + 2];
+                if (r[b] == Values.INT && r[c] == Values.INT) {
+                    code[pc - 1] = quickened(op);
+                }
+                binary(op, a, b, c);
+                pc += 3;
+                break;
+            }
+            case OpCode.DIV:
+                binary(op, base + code[pc], base + code[pc + 1], base + code[pc + 2]);
+                pc += 3;
+                break;
+            case OpCode.ADD_II:
+            case OpCode.SUB_II:
+            case OpCode.MUL_II: {
+                int a = base + code[pc], b = base + code[pc + 1], c = base + code[pc + 2];
+                if (r[b] == Values.INT && r[c] == Values.INT) {
+                    // Two ints never overflow a long, so no exact-math checks are needed.
+                    long v = op == OpCode.ADD_II ? p[b] + p[c]
+                           : op == OpCode.SUB_II ? p[b] - p[c]
+                           : p[b] * p[c];
+                    r[a] = Values.fitsInt(v) ? Values.INT : Values.LONG;
+                    p[a] = v;
+                } else {
+                    code[pc - 1] = generic(op);
+                    binary(generic(op), a, b, c);
+                }
+                pc += 3;
+                break;
+            }
+            case OpCode.EQ_II:
+            case OpCode.NE_II:
+            case OpCode.LT_II:
+            case OpCode.LE_II:
+            case OpCode.GT_II:
+            case OpCode.GE_II: {
+                int a = base + code[pc], b = base + code[pc + 1], c = base + code[pc + 2];
+                if (r[b] == Values.INT && r[c] == Values.INT) {
+                    long x = p[b], y = p[c];
+                    boolean v;
+                    switch (op) {
+                        case OpCode.EQ_II: v = x == y; break;
+                        case OpCode.NE_II: v = x != y; break;
+                        case OpCode.LT_II: v = x < y; break;
+                        case OpCode.LE_II: v = x <= y; break;
+                        case OpCode.GT_II: v = x > y; break;
+                        default: v = x >= y; break;
+                    }
+                    r[a] = v;
+                } else {
+                    code[pc - 1] = generic(op);
+                    binary(generic(op), a, b, c);
+                }
+                pc += 3;
+                break;
+            }
+            case OpCode.AND: {
+                int b = base + code[pc + 1], c = base + code[pc + 2];
+                r[base + code[pc]] = Values.isTruthy(r[b], p[b]) && Values.isTruthy(r[c], p[c]);
+                pc += 3;
+                break;
+            }
+            case OpCode.OR: {
+                int b = base + code[pc + 1], c = base + code[pc + 2];
+                r[base + code[pc]] = Values.isTruthy(r[b], p[b]) || Values.isTruthy(r[c], p[c]);
+                pc += 3;
+                break;
+            }
+            case OpCode.NOT: {
+                int b = base + code[pc + 1];
+                r[base + code[pc]] = !Values.isTruthy(r[b], p[b]);
+                pc += 2;
+                break;
+            }
+            case OpCode.NEG:
+                negate(base + code[pc], base + code[pc + 1]);
+                pc += 2;
+                break;
+
+            case OpCode.JMP:
+                pc = code[pc];
+                break;
+            case OpCode.JMPF: {
+                int a = base + code[pc];
+                pc = Values.isTruthy(r[a], p[a]) ? pc + 2 : code[pc + 1];
+                break;
+            }
+
+            case OpCode.PRINT:
+                output.println(get(base + code[pc++]));
+                isYielding = true;
+                break;
+            case OpCode.CALL:
+                f.pc = pc + 5;
+                call(f, code[pc], (String) k[code[pc + 1]], code[pc + 2], code[pc + 3], code[pc + 4]);
+                return;
+            case OpCode.TAILCALL:
+                f.pc = pc + 4;
+                tailCall(f, (String) k[code[pc]], code[pc + 1], code[pc + 2], code[pc + 3]);
+                return;
+            case OpCode.RETURN:
+                doReturn(base + code[pc]);
+                return;
+            case OpCode.DEFFUN: {
+                Chunk fn = (Chunk) k[code[pc++]];
+                f.env.defineFunction(fn.name, new UserFunction(fn, f.env));
+                break;
+            }
+            case OpCode.ENTER:
+                f.env = new Environment(f.env, (String[]) k[code[pc++]]);
+                break;
+            case OpCode.EXIT:
+                f.env = f.env.getParent();
+                break;
+
+            case OpCode.NEWLIST: {
+                int first = base + code[pc + 1], n = code[pc + 2];
+                ListValue list = new ListValue();
+                for (int i = first; i < first + n; i++) {
+                    if (r[i] == Values.INT || r[i] == Values.LONG) list.addLong(p[i]);
+                    else if (r[i] == Values.DOUBLE) list.addDouble(Double.longBitsToDouble(p[i]));
+                    else list.add(r[i]);
+                }
+                r[base + code[pc]] = list;
+                pc += 3;
+                break;
+            }
+            case OpCode.NEWDICT: {
+                int first = base + code[pc + 1], n = code[pc + 2];
+                DictValue dict = new DictValue();
+                for (int i = first; i < first + 2 * n; i += 2) {
+                    if (r[i] == Values.INT || r[i] == Values.LONG) dict.putLong(p[i], r[i + 1], p[i + 1]);
+                    else dict.put(Values.box(r[i], p[i]), r[i + 1], p[i + 1]);
+                }
+                r[base + code[pc]] = dict;
+                pc += 3;
+                break;
+            }
+            case OpCode.GETINDEX:
+                getIndex(base + code[pc], base + code[pc + 1], base + code[pc + 2]);
+                pc += 3;
+                break;
+            case OpCode.SETINDEX:
+                setIndex(base + code[pc], base + code[pc + 1], base + code[pc + 2]);
+                pc += 3;
+                break;
+            default:
+                throw new RuntimeException("Unknown opcode " + op);
+        }
+        f.pc = pc;
+    }
+
+    // The builtin or user function `name` refers to at this call site, or null.
+    // Cached sites skip the scope-chain search while the top-level functions are
+    // unchanged; a miss re-resolves and re-points the site.
+    private Object resolve(Frame f, String name, int site) {
+        Environment env = f.env;
+        if (site < 0) {
+            BuiltinFunction builtin = env.getBuiltin(name);
+            return builtin != null ? builtin : env.getFunction(name);
+        }
+        InlineCache cache = f.chunk.inlineCaches[site];
+        Environment root = env.root;
+        int version = env.functionVersion();
+        if (cache != null && cache.root == root && cache.version == version) {
+            return cache.target;
+        }
+        BuiltinFunction builtin = env.getBuiltin(name);
+        Object target = builtin != null ? builtin : env.getFunction(name);
+        if (target != null) f.chunk.inlineCaches[site] = new InlineCache(root, version, target);
+        return target;
+    }
+
+    private void call(Frame f, int target, String name, int argBase, int argc, int site) {
+        int first = f.base + argBase;
+
+        try {
+            Object callee = resolve(f, name, site);
+            if (callee instanceof BuiltinFunction) {
+                if (metrics != null) metrics.builtinCall(name);
+                callBuiltin((BuiltinFunction) callee, name, f.base + target, first, argc);
+                return;
+            }
+
+            UserFunction func = (UserFunction) callee;
+            if (func == null) throw new RuntimeException("Function not found: " + name);
+            if (argc != func.params.size())
+                throw new RuntimeException("Function " + name + " expects " + func.params.size() + " arguments, got " + argc);
+            if (metrics != null) metrics.function(func.body).calls.increment();
+
+            Memo memo = func.body.memo;
+            Object key = memo == null ? null : Memo.key(stack.regs, stack.prims, first, argc);
+            if (key != null) {
+                Object result = memo.get(key);
+                if (result != Memo.MISS) {
+                    set(f.base + target, result);
+                    return;
+                }
+            }
+            if (!stack.fits(func.body, false)) throw overflow();
+
+            // Parameters occupy the first slots, so arguments are copied cell by cell.
+            Environment localEnv = new Environment(func.env, func.body.locals);
+            System.arraycopy(stack.regs, first, localEnv.slots, 0, argc);
+            System.arraycopy(stack.prims, first, localEnv.prims, 0, argc);
+
+            Frame frame = stack.push(func.body, localEnv, f.base + f.chunk.numRegs, f.base + target, true);
+            if (key != null) {
+                frame.memo = memo;
+                frame.memoKey = key;
+            }
+            if (metrics != null) frame.started = System.nanoTime();
+        } catch (RuntimeException e) {
+            throw withTrace(e);
+        }
+    }
+
+    // Call a builtin with arguments in registers first .. first+argc-1, result to `a`.
+    // Numeric builtins run on the unboxed cells; fixed-arity builtins get their
+    // arguments directly; varargs builtins get a list view of the registers.
+    private void callBuiltin(BuiltinFunction builtin, String name, int a, int first, int argc) {
+        int arity = builtin.arity();
+        if (arity >= 0 && argc != arity) {
+            throw new RuntimeException(name + "() expects " + arity + " argument(s), got " + argc);
+        }
+        Object[] r = stack.regs;
+        long[] p = stack.prims;
+
+        if (builtin instanceof UnaryNumeric && Values.isNumber(r[first])) {
+            UnaryNumeric fn = (UnaryNumeric) builtin;
+            Object t = r[first];
+            if (t != Values.DOUBLE && fn.ints != null) setInteger(a, fn.ints.applyAsLong(p[first]));
+            else setDouble(a, fn.doubles.applyAsDouble(Values.asDouble(t, p[first])));
+            return;
+        }
+        if (builtin instanceof BinaryNumeric && Values.isNumber(r[first]) && Values.isNumber(r[first + 1])) {
+            BinaryNumeric fn = (BinaryNumeric) builtin;
+            Object tx = r[first], ty = r[first + 1];
+            long x = p[first], y = p[first + 1];
+            if (tx != Values.DOUBLE && ty != Values.DOUBLE) setInteger(a, fn.ints.applyAsLong(x, y));
+            else setDouble(a, fn.doubles.applyAsDouble(Values.asDouble(tx, x), Values.asDouble(ty, y)));
+            return;
+        }
+
+        Object result;
+        if (builtin instanceof HigherOrder) {
+            result = ((HigherOrder) builtin).call2(get(first), get(first + 1), new Callback(first));
+            set(a, result);
+            return;
+        }
+        switch (argc) {
+            case 0: result = builtin.call0(); break;
+            case 1: result = builtin.call1(get(first)); break;
+            case 2: result = builtin.call2(get(first), get(first + 1)); break;
+            default:
+                args.first = first;
+                args.count = argc;
+                result = builtin.call(args);
+                break;
+        }
+        if (result instanceof Suspend) {
+            suspension = (Suspend) result;
+            if (suspension.isSleep()) output.flush();   // show what was printed before the pause
+            resumeReg = a;
+            stack.regs[resumeReg] = null;
+            isYielding = true;
+        } else {
+            set(a, result);
+        }
+    }
+
+    // Calls from a higher-order builtin made by the top frame. Each call runs to
+    // completion before returning its result; the builtin's first argument register,
+    // already read, carries the argument and the result.
+    private final class Callback implements Caller {
+        private final int reg;
+
+        Callback(int reg) {
+            this.reg = reg;
+        }
+
+        public Object resolve(String function) {
+            return EvalTask.this.resolve(stack.top(), function, -1);
+        }
+
+        public Object call(String function, Object arg) {
+            Frame f = stack.top();
+            set(reg, arg);
+            EvalTask.this.call(f, reg - f.base, function, reg - f.base, 1, -1);
+            while (suspension == null && stack.top() != f) {
+                execute();
+            }
+            if (suspension != null) throw new RuntimeException(function + "() cannot wait inside a builtin such as map()");
+            return get(reg);
+        }
+    }
+
+    // Arguments of a varargs builtin call, read (and boxed) straight from the registers.
+    private final class RegisterArgs extends AbstractList<Object> {
+        int first, count;
+
+        @Override
+        public Object get(int i) {
+            Objects.checkIndex(i, count);
+            return EvalTask.this.get(first + i);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+
+    // A call in tail position: a user function takes over the current frame, so tail
+    // recursion runs in constant stack space. Self-recursion through a function that
+    // defines no closures also reuses the frame's scope instead of allocating one.
+    // Anything else (builtins, and calls that fail) runs as a normal CALL whose result
+    // the RETURN after this instruction passes on, as does a memoized result. The frame
+    // keeps any result it was already going to remember: the callee's result is its own.
+    private void tailCall(Frame f, String name, int argBase, int argc, int site) {
+        Object callee = resolve(f, name, site);
+        if (!(callee instanceof UserFunction) || argc != ((UserFunction) callee).params.size()) {
+            call(f, argBase, name, argBase, argc, site);
+            return;
+        }
+        UserFunction func = (UserFunction) callee;
+        if (metrics != null) metrics.function(func.body).calls.increment();
+        int first = f.base + argBase;
+        Memo memo = f.memo;
+        Object key = f.memoKey;
+        if (func.body.memo != null) {
+            Object calleeKey = Memo.key(stack.regs, stack.prims, first, argc);
+            Object result = calleeKey == null ? Memo.MISS : func.body.memo.get(calleeKey);
+            if (result != Memo.MISS) {
+                set(first, result);
+                return;
+            }
+            if (memo == null && calleeKey != null) {
+                memo = func.body.memo;
+                key = calleeKey;
+            }
+        }
+        if (!stack.fits(func.body, true)) throw withTrace(overflow());
+
+        Environment localEnv;
+        if (func.body == f.chunk && !func.body.definesFunctions && f.callEnv.getParent() == func.env) {
+            localEnv = f.callEnv;
+            localEnv.reenter(argc);
+        } else {
+            localEnv = new Environment(func.env, func.body.locals);
+        }
+        System.arraycopy(stack.regs, first, localEnv.slots, 0, argc);
+        System.arraycopy(stack.prims, first, localEnv.prims, 0, argc);
+        long started = f.started;
+        Chunk caller = f.chunk;
+        stack.replaceTop(func.body, localEnv);
+        f.memo = memo;
+        f.memoKey = key;
+        if (metrics != null) {
+            // The replaced call ends here and the new one starts.
+            long now = System.nanoTime();
+            if (f.isCall) metrics.function(caller).nanos.add(now - started);
+            f.started = now;
+        }
+    }
+
+    private RuntimeException overflow() {
+        return new RuntimeException("Stack overflow: recursion exceeded the " + stack.budget() / 1024
+                + " KB stack budget at depth " + stack.callDepth() + ".");
+    }
+
+    // Append this task's call stack to an error message, once.
+    private RuntimeException withTrace(RuntimeException e) {
+        if (e.getMessage() != null && e.getMessage().contains("Call stack")) return e;
+        return new RuntimeException(e.getMessage() + "\n\nCall stack (most recent call first):\n" + stack.formatTrace(), e);
+    }
+
+    @Override
+    public Suspend takeSuspension() {
+        Suspend s = suspension;
+        suspension = null;
+        return s;
+    }
+
+    @Override
+    public void resume(Object value) {
+        set(resumeReg, value);
+        if (metrics != null) readySince = System.nanoTime();
+    }
+
+    // slot = slot <op> R[a], leaving the new value in R[a]; R[t] is scratch.
+    // Runs under the slot's stripe lock when the environment is shared.
+    private void update(Environment env, int index, int op, int a, int t) {
+        Object[] r = stack.regs;
+        long[] p = stack.prims;
+        if (env.loadSlot(index, r, p, t)) {
+            binary(op, a, t, a);
+            env.storeSlot(index, r, p, a);
+        } else {
+            String name = env.slotNames[index];
+            set(t, env.getFromParent(name));
+            binary(op, a, t, a);
+            env.assignInParent(name, get(a));
+        }
+    }
+
+    private void doReturn(int reg) {
+        Frame done = stack.pop();
+        if (metrics != null && done.isCall) metrics.function(done.chunk).nanos.add(System.nanoTime() - done.started);
+        if (done.memo != null) {
+            done.memo.put(done.memoKey, get(reg));
+            done.memo = null;
+            done.memoKey = null;
+        }
+        if (stack.isEmpty()) {
+            Object result = get(reg);
+            isDone = true;
+            stack.release();
+            stack = null;
+            output.flush();
+            if (handle != null) handle.complete(result);
+            return;
+        }
+        stack.regs[done.returnReg] = stack.regs[reg];
+        stack.prims[done.returnReg] = stack.prims[reg];
+    }
+
+    // === Register cells ===
+
+    private Object get(int reg) {
+        return Values.box(stack.regs[reg], stack.prims[reg]);
+    }
+
+    private void set(int reg, Object value) {
+        stack.regs[reg] = Values.tag(value);
+        stack.prims[reg] = Values.payload(value);
+    }
+
+    private void setInteger(int reg, long value) {
+        stack.regs[reg] = Values.fitsInt(value) ? Values.INT : Values.LONG;
+        stack.prims[reg] = value;
+    }
+
+    private void setDouble(int reg, double value) {
+        stack.regs[reg] = Values.DOUBLE;
+        stack.prims[reg] = Double.doubleToRawLongBits(value);
+    }
+
+    // === Indexing ===
+    // Elements of integer and double lists, and dict values, move between the
+    // container's arrays and the registers without boxing.
+
+    // R[a] = R[b][R[c]]
+    private void getIndex(int a, int b, int c) {
+        Object target = stack.regs[b];
+        if (target instanceof DictValue) {
+            DictValue dict = (DictValue) target;
+            Object key = stack.regs[c];
+            int e = key == Values.INT || key == Values.LONG ? dict.find(stack.prims[c]) : dict.find(key);
+            if (e < 0) throw DictValue.missing(get(c));
+            stack.regs[a] = dict.tags[e];
+            stack.prims[a] = dict.prims[e];
+            return;
+        }
+        long i = index(c);
+        if (target instanceof ListValue) {
+            ListValue list = (ListValue) target;
+            int at = list.index(i);
+            if (list.kind == ListValue.LONGS) setInteger(a, list.longs[at]);
+            else if (list.kind == ListValue.DOUBLES) setDouble(a, list.doubles[at]);
+            else set(a, list.objects[at]);
+        } else if (target instanceof String) {
+            String str = (String) target;
+            if (i < 0 || i >= str.length()) {
+                throw new RuntimeException("String index out of range: " + i + " (length " + str.length() + ")");
+            }
+            stack.regs[a] = String.valueOf(str.charAt((int) i));
+        } else {
+            throw new RuntimeException("Cannot index " + get(b) + ": expected a list, a dict or a string");
+        }
+    }
+
+    // R[a][R[b]] = R[c]
+    private void setIndex(int a, int b, int c) {
+        Object target = stack.regs[a];
+        if (target instanceof DictValue) {
+            DictValue dict = (DictValue) target;
+            Object key = stack.regs[b];
+            if (key == Values.INT || key == Values.LONG) dict.putLong(stack.prims[b], stack.regs[c], stack.prims[c]);
+            else dict.put(get(b), stack.regs[c], stack.prims[c]);
+            return;
+        }
+        if (!(target instanceof ListValue)) {
+            throw new RuntimeException("Cannot assign an element of " + get(a) + ": expected a list or a dict");
+        }
+        ListValue list = (ListValue) target;
+        long i = index(b);
+        Object t = stack.regs[c];
+        if (t == Values.INT || t == Values.LONG) list.setLong(i, stack.prims[c]);
+        else if (t == Values.DOUBLE) list.setDouble(i, Double.longBitsToDouble(stack.prims[c]));
+        else list.set(i, t);
+    }
+
+    private long index(int reg) {
+        Object t = stack.regs[reg];
+        if (t != Values.INT && t != Values.LONG) throw new RuntimeException("Index must be an integer, got " + get(reg));
+        return stack.prims[reg];
+    }
+
+    // === Arithmetic ===
+    // Integers stay integers (int, widening to long on overflow); any double operand
+    // makes the result a double, and `/` is always true division.
+
+    private void binary(int op, int a, int b, int c) {
+        Object[] r = stack.regs;
+        long[] p = stack.prims;
+        Object tb = r[b], tc = r[c];
+
+        if (op == OpCode.EQ || op == OpCode.NE) {
+            boolean equal;
+            if (Values.isNumber(tb) && Values.isNumber(tc)) {
+                equal = tb == Values.DOUBLE || tc == Values.DOUBLE
+                        ? Values.asDouble(tb, p[b]) == Values.asDouble(tc, p[c])
+                        : p[b] == p[c];
+            } else {
+                equal = Objects.equals(get(b), get(c));
+            }
+            r[a] = op == OpCode.EQ ? equal : !equal;
+            return;
+        }
+
+        if (op == OpCode.ADD && (tb instanceof String || tc instanceof String)) {
+            r[a] = String.valueOf(get(b)) + String.valueOf(get(c));
+            return;
+        }
+        if (!Values.isNumber(tb)) throw new RuntimeException("Expected a number but got " + get(b));
+        if (!Values.isNumber(tc)) throw new RuntimeException("Expected a number but got " + get(c));
+
+        if (tb == Values.DOUBLE || tc == Values.DOUBLE || op == OpCode.DIV) {
+            double x = Values.asDouble(tb, p[b]), y = Values.asDouble(tc, p[c]);
+            switch (op) {
+                case OpCode.ADD: setDouble(a, x + y); break;
+                case OpCode.SUB: setDouble(a, x - y); break;
+                case OpCode.MUL: setDouble(a, x * y); break;
+                case OpCode.DIV: setDouble(a, x / y); break;
+                case OpCode.LT: r[a] = x < y; break;
+                case OpCode.LE: r[a] = x <= y; break;
+                case OpCode.GT: r[a] = x > y; break;
+                default: r[a] = x >= y; break;
+            }
+            return;
+        }
+
+        long x = p[b], y = p[c];
+        try {
+            switch (op) {
+                case OpCode.ADD: setInteger(a, Math.addExact(x, y)); break;
+                case OpCode.SUB: setInteger(a, Math.subtractExact(x, y)); break;
+                case OpCode.MUL: setInteger(a, Math.multiplyExact(x, y)); break;
+                case OpCode.LT: r[a] = x < y; break;
+                case OpCode.LE: r[a] = x <= y; break;
+                case OpCode.GT: r[a] = x > y; break;
+                default: r[a] = x >= y; break;
+            }
+        } catch (ArithmeticException overflow) {
+            // Past 64 bits: continue in floating point rather than wrapping around.
+            double dx = x, dy = y;
+            setDouble(a, op == OpCode.ADD ? dx + dy : op == OpCode.SUB ? dx - dy : dx * dy);
+        }
+    }
+
+    private void negate(int a, int b) {
+        Object tb = stack.regs[b];
+        long v = stack.prims[b];
+        if (tb == Values.INT || (tb == Values.LONG && v != Long.MIN_VALUE)) {
+            setInteger(a, -v);
+        } else if (Values.isNumber(tb)) {
+            setDouble(a, -Values.asDouble(tb, v));
+        } else {
+            throw new RuntimeException("Expected a number but got " + get(b));
+        }
+    }
+
+    private static int quickened(int op) {
+        switch (op) {
+            case OpCode.ADD: return OpCode.ADD_II;
+            case OpCode.SUB: return OpCode.SUB_II;
+            case OpCode.MUL: return OpCode.MUL_II;
+            case OpCode.EQ: return OpCode.EQ_II;
+            case OpCode.NE: return OpCode.NE_II;
+            case OpCode.LT: return OpCode.LT_II;
+            case OpCode.LE: return OpCode.LE_II;
+            case OpCode.GT: return OpCode.GT_II;
+            default: return OpCode.GE_II;
+        }
+    }
+
+    private static int generic(int op) {
+        switch (op) {
+            case OpCode.ADD_II: return OpCode.ADD;
+            case OpCode.SUB_II: return OpCode.SUB;
+            case OpCode.MUL_II: return OpCode.MUL;
+            case OpCode.EQ_II: return OpCode.EQ;
+            case OpCode.NE_II: return OpCode.NE;
+            case OpCode.LT_II: return OpCode.LT;
+            case OpCode.LE_II: return OpCode.LE;
+            case OpCode.GT_II: return OpCode.GT;
+            default: return OpCode.GE;
+        }
     }
 }
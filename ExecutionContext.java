@@ -0,0 +1,114 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// === Execution Context ===
+// Everything one run of a program needs besides the program itself: a scheduler, a
+// root environment, an output sink and the spawn() and flush() builtins bound to them. The standard builtins come
+// from the shared BuiltinsRegistry table. A context runs one program at a time and can
+// be reused for the next; running the same program again resets and reuses its root
+// environment instead of building a new one.
+class ExecutionContext {
+    private final int workers;
+    private final long stackBudget;
+    private final Output output;
+    private Profiler profiler;
+    private Metrics metrics;
+    private final BuiltinFunction spawn = this::spawn;
+
+    private CoopScheduler coop;         // reused from run to run on one thread
+    private Environment env;            // root environment of the last run
+    private Chunk envProgram;           // the program env was built for
+
+    // The run in progress, for spawn()
+    private Scheduler scheduler;
+    private Environment runEnv;
+
+    ExecutionContext(int workers, long stackBudget, Output output) {
+        this.workers = workers;
+        this.stackBudget = stackBudget;
+        this.output = output;
+    }
+
+    // Sample the tasks of every run with `profiler`.
+    void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    // Record what the tasks of every run do in `metrics`.
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Run `program` to completion with `globals` defined as global variables, and
+    // return the value of its last statement. A failure is thrown with the failing
+    // task's call stack. Everything printed has been flushed by the time it returns.
+    Object run(Chunk program, Map<String, ?> globals) {
+        Environment root = rootFor(program);
+        for (Map.Entry<String, ?> global : globals.entrySet()) root.define(global.getKey(), global.getValue());
+
+        Scheduler sched;
+        if (workers > 1) {
+            root.share();
+            sched = new ParallelScheduler(workers);   // its threads end with the run
+        } else {
+            if (coop == null) coop = new CoopScheduler();
+            sched = coop;
+        }
+
+        EvalTask mainTask = new EvalTask(program, root, stackBudget);
+        TaskHandle result = new TaskHandle(program.name);
+        mainTask.setHandle(result);
+        mainTask.setOutput(output);
+        mainTask.setProfiler(profiler);
+        if (metrics != null) mainTask.setMetrics(metrics);
+        scheduler = sched;
+        runEnv = root;
+        try {
+            sched.submit(mainTask);
+            sched.run();
+        } catch (RuntimeException e) {
+            // Tasks may still be queued or parked: start the next run from scratch.
+            coop = null;
+            env = null;
+            throw e;
+        } finally {
+            output.flush();
+            scheduler = null;
+            runEnv = null;
+        }
+        return result.join();
+    }
+
+    private Environment rootFor(Chunk program) {
+        if (env != null && envProgram == program) {
+            env.reset();
+            return env;
+        }
+        env = new Environment(program.locals, BuiltinsRegistry.STANDARD);
+        env.defineBuiltin("spawn", spawn);
+        // flush() — write out everything printed so far
+        env.defineBuiltin("flush", (Builtin0) () -> {
+            output.flush();
+            return null;
+        });
+        envProgram = program;
+        return env;
+    }
+
+    // spawn(f, args...) — start f(args...) as a new task of the current run
+    private Object spawn(List<Object> args) {
+        if (args.isEmpty()) throw new RuntimeException("spawn expects at least 1 argument (function name)");
+        String funcName = String.valueOf(args.get(0));
+
+        List<Object> callArgs = new ArrayList<>(args.subList(1, args.size()));
+        EvalTask newTask = new EvalTask(Compiler.callStub(funcName, callArgs), runEnv, stackBudget);
+        TaskHandle handle = new TaskHandle(funcName);
+        newTask.setHandle(handle);
+        newTask.setOutput(output);
+        newTask.setProfiler(profiler);
+        if (metrics != null) newTask.setMetrics(metrics);
+        scheduler.submit(newTask);
+        return handle;
+    }
+}
@@ -0,0 +1,50 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// === Histogram ===
+// Counts of non-negative values in power-of-two buckets: bucket b holds values below
+// 2^b and at least 2^(b-1). Percentiles are reported as their bucket's upper bound, so
+// they are within a factor of two, which is plenty for latency and size distributions.
+public final class Histogram {
+    private final LongAdder[] buckets = new LongAdder[65];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    Histogram() {
+        for (int b = 0; b < buckets.length; b++) buckets[b] = new LongAdder();
+    }
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+        count.increment();
+        sum.add(value);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    public double mean() {
+        long n = count();
+        return n == 0 ? 0 : (double) sum() / n;
+    }
+
+    // An upper bound of the `q` quantile (0 to 1) of the recorded values.
+    public long percentile(double q) {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int b = 0; b < buckets.length; b++) total += counts[b] = buckets[b].sum();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int b = 0; b < counts.length; b++) {
+            seen += counts[b];
+            if (seen >= rank) return b == 0 ? 0 : b == 64 ? Long.MAX_VALUE : (1L << b) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+}
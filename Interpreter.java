@@ -1,42 +1,48 @@
-import java.util.List;
-import java.util.ArrayList;
+import java.util.Collections;
 
 public class Interpreter {
-    public void execute(ASTNode program) {
-        Environment env = new Environment();
-        BuiltinsRegistry.register(env);
-        
-        CoopScheduler scheduler = new CoopScheduler();
-
-        env.defineBuiltin("spawn", args -> {
-            if (args.isEmpty()) throw new RuntimeException("spawn expects at least 1 argument (function name)");
-            String funcName = String.valueOf(args.get(0));
-            
-            List<ASTNode> callArgs = new ArrayList<>();
-            for (int i = 1; i < args.size(); i++) {
-                final Object val = args.get(i);
-                callArgs.add(new ASTNode() {
-                    public void pushEval(EvalTask task, Environment loopEnv) {
-                        task.push(t -> t.operands.push(val));
-                    }
-                });
-            }
-            
-            ASTNode callNative = new FunctionCallNode(funcName, callArgs);
-            EvalTask newTask = new EvalTask(callNative, env);
-            scheduler.submit(newTask);
-            return null;
-        });
-
-        env.defineBuiltin("yield", args -> {
-            return null;
-        });
-
-        EvalTask mainTask = new EvalTask(program, env);
-        scheduler.submit(mainTask);
+    private final int workers;
+    private long stackBudget = TaskStack.DEFAULT_BUDGET;
+    private Output output = Output.STDOUT;
+    private Profiler profiler;
+    private Metrics metrics;
 
+    public Interpreter() {
+        this(1);
+    }
+
+    // With more than one worker, spawned tasks run in parallel on that many threads.
+    public Interpreter(int workers) {
+        this.workers = workers;
+    }
+
+    // Memory each task's call stack may use, in bytes, before a stack overflow error.
+    // Tail calls do not add to it.
+    public void setStackBudget(long bytes) {
+        this.stackBudget = bytes;
+    }
+
+    // Where `print` writes; standard output by default.
+    void setOutput(Output output) {
+        this.output = output;
+    }
+
+    // Sample the running tasks with `profiler` (see Profiler); off by default.
+    void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    // Record counters and timings of the run in `metrics`; off by default.
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void execute(Chunk program) {
         try {
-            scheduler.run();
+            ExecutionContext context = new ExecutionContext(workers, stackBudget, output);
+            context.setProfiler(profiler);
+            context.setMetrics(metrics);
+            context.run(program, Collections.emptyMap());
         } catch (RuntimeException e) {
             System.err.println("Runtime error: " + e.getMessage());
         }
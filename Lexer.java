@@ -1,10 +1,33 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.*;
 
+// === Lexer ===
+// Turns source text into tokens one at a time, on demand: the Parser pulls each
+// token with next(). The source is read through a fixed-size buffer, so memory use
+// does not grow with the length of the program. Identifiers and numbers are interned
+// in a symbol table, so each distinct name is one String however often it appears.
+// Tokens without a varying value are shared, so a token's position is not stored in
+// it: line() and column() give the position of the token next() returned last.
 public class Lexer {
-    private final String input;
-    private int pos = 0;
-    private int lineStartPos = 0;  // Position of line start (for indentation)
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader in;
+    private final char[] buf = new char[BUFFER_SIZE];
+    private int start = 0, limit = 0;   // unread characters are buf[start .. limit)
+    private boolean eof = false;
+    private boolean heldCR = false;     // a '\r' ended the last read; it may start "\r\n"
+    private int line = 1, column = 1;   // source position of buf[start]
+    private int tokenLine, tokenColumn; // where the last token returned starts
+
+    private boolean atLineStart = true;
     private final Stack<Integer> indentStack = new Stack<>();
+    private final ArrayDeque<Token> pending = new ArrayDeque<>();  // DEDENTs still to hand out
+
+    private final SymbolTable symbols = new SymbolTable();
+    private char[] text = new char[64]; // the identifier or number being scanned
+    private int textLength;
 
     // Keywords mapping
     private static final Map<String, Token.Type> keywords = Map.of(
@@ -18,38 +41,95 @@ public class Lexer {
             "return", Token.Type.RETURN
     );
 
-    public Lexer(String input) {
-        this.input = input.replace("\r\n", "\n"); // normalize newlines
+    // Tokens without a varying value are shared.
+    private static final Token INDENT = new Token(Token.Type.INDENT, "");
+    private static final Token DEDENT = new Token(Token.Type.DEDENT, "");
+    private static final Token NEWLINE = new Token(Token.Type.NEWLINE, "\n");
+    private static final Token ASSIGN = new Token(Token.Type.EQ, "=");
+    private static final Token LPAREN = new Token(Token.Type.LPAREN, "(");
+    private static final Token RPAREN = new Token(Token.Type.RPAREN, ")");
+    private static final Token LBRACE = new Token(Token.Type.LBRACE, "{");
+    private static final Token RBRACE = new Token(Token.Type.RBRACE, "}");
+    private static final Token LBRACKET = new Token(Token.Type.LBRACKET, "[");
+    private static final Token RBRACKET = new Token(Token.Type.RBRACKET, "]");
+    private static final Token COMMA = new Token(Token.Type.COMMA, ",");
+    private static final Token SEMICOLON = new Token(Token.Type.SEMICOLON, ";");
+    private static final Token COLON = new Token(Token.Type.COLON, ":");
+    private static final Token EOF = new Token(Token.Type.EOF, "");
+    private static final Token[] OPERATORS = new Token[Operator.values().length];
+    static {
+        for (Operator op : Operator.values()) OPERATORS[op.ordinal()] = new Token(Token.Type.OP, op.symbol, op);
+    }
+
+    public Lexer(Reader in) {
+        this.in = in;
         indentStack.push(0);  // initial indent level 0
     }
 
+    public Lexer(String input) {
+        this(new StringReader(input));
+    }
+
+    // Every remaining token, ending with EOF.
     public List<Token> tokenize() {
         List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = next();
+            tokens.add(token);
+        } while (token.type != Token.Type.EOF);
+        return tokens;
+    }
+
+    // Where the token last returned by next() starts, 1-based.
+    public int line() {
+        return tokenLine;
+    }
 
-        while (pos < input.length()) {
-            char c = input.charAt(pos);
+    public int column() {
+        return tokenColumn;
+    }
+
+    // The next token. After the end of the input, always EOF.
+    public Token next() {
+        if (!pending.isEmpty()) return pending.poll();
 
+        while (true) {
             // Handle start of line for indentation
-            if (pos == lineStartPos) {
+            if (atLineStart) {
+                atLineStart = false;
                 int indent = countIndentation();
+                if (peek(0) < 0) continue;   // trailing whitespace at the end of the input
+                tokenLine = line;
+                tokenColumn = column;
                 int prevIndent = indentStack.peek();
 
                 if (indent > prevIndent) {
                     indentStack.push(indent);
-                    tokens.add(new Token(Token.Type.INDENT, ""));
-                } else {
-                    while (indent < prevIndent) {
-                        indentStack.pop();
-                        prevIndent = indentStack.peek();
-                        tokens.add(new Token(Token.Type.DEDENT, ""));
-                    }
-                    if (indent != prevIndent) {
-                        throw new RuntimeException("Indentation error at position " + pos);
-                    }
+                    return INDENT;
+                }
+                while (indent < prevIndent) {
+                    indentStack.pop();
+                    prevIndent = indentStack.peek();
+                    pending.add(DEDENT);
+                }
+                if (indent != prevIndent) {
+                    throw new RuntimeException("Indentation error at line " + line);
                 }
+                if (!pending.isEmpty()) return pending.poll();
             }
 
-            c = input.charAt(pos);
+            int c = peek(0);
+            tokenLine = line;
+            tokenColumn = column;
+            if (c < 0) {
+                // On EOF, unwind remaining indentations
+                if (indentStack.size() > 1) {
+                    indentStack.pop();
+                    return DEDENT;
+                }
+                return EOF;
+            }
 
             if (c == '#') {
                 skipComment();
@@ -57,172 +137,235 @@ public class Lexer {
             }
 
             if (c == '\n') {
-                pos++;
-                lineStartPos = pos;
-                tokens.add(new Token(Token.Type.NEWLINE, "\n"));
-                continue;
+                skip();
+                atLineStart = true;
+                return NEWLINE;
             }
 
             if (Character.isWhitespace(c)) {
-                pos++;
+                skip();
                 continue;
             }
 
-            if (c == '"' || c == '\'') {
-                tokens.add(string());
-                continue;
-            }
-
-            if (Character.isDigit(c)) {
-                tokens.add(number());
-                continue;
-            }
-
-            if (Character.isLetter(c) || c == '_') {
-                tokens.add(identifier());
-                continue;
-            }
+            if (c == '"' || c == '\'') return string();
+            if (Character.isDigit(c)) return number();
+            if (Character.isLetter(c) || c == '_') return identifier();
 
             switch (c) {
-                case '+': case '-': case '*': case '/':
-                case '!':
-                case '<': case '>':
-                case '&': case '|':
-                    tokens.add(operator());
-                    continue;
-                case '=':
-                    if (peekNext() == '=') {
-                        pos += 2;
-                        tokens.add(new Token(Token.Type.OP, "=="));
-                    } else {
-                        pos++;
-                        tokens.add(new Token(Token.Type.EQ, "="));
-                    }
-                    continue;
-                case '(':
-                    pos++;
-                    tokens.add(new Token(Token.Type.LPAREN, "("));
-                    continue;
-                case ')':
-                    pos++;
-                    tokens.add(new Token(Token.Type.RPAREN, ")"));
-                    continue;
-                case '{':
-                    pos++;
-                    tokens.add(new Token(Token.Type.LBRACE, "{"));
-                    continue;
-                case '}':
-                    pos++;
-                    tokens.add(new Token(Token.Type.RBRACE, "}"));
-                    continue;
-                case ',':
-                    pos++;
-                    tokens.add(new Token(Token.Type.COMMA, ","));
-                    continue;
-                case ';':
-                    pos++;
-                    tokens.add(new Token(Token.Type.SEMICOLON, ";"));
-                    continue;
-                case ':':
-                    pos++;
-                    tokens.add(new Token(Token.Type.COLON, ":"));
-                    continue;
+                case '+': skip(); return OPERATORS[Operator.ADD.ordinal()];
+                case '-': skip(); return OPERATORS[Operator.SUB.ordinal()];
+                case '*': skip(); return OPERATORS[Operator.MUL.ordinal()];
+                case '/': skip(); return OPERATORS[Operator.DIV.ordinal()];
+                case '!': return operator(Operator.NOT, '=', Operator.NE);
+                case '<': return operator(Operator.LT, '=', Operator.LE);
+                case '>': return operator(Operator.GT, '=', Operator.GE);
+                case '=': return peek(1) == '=' ? operator(null, '=', Operator.EQ) : single(ASSIGN);
+                case '&': return operator(null, '&', Operator.AND);
+                case '|': return operator(null, '|', Operator.OR);
+                case '(': return single(LPAREN);
+                case ')': return single(RPAREN);
+                case '{': return single(LBRACE);
+                case '}': return single(RBRACE);
+                case '[': return single(LBRACKET);
+                case ']': return single(RBRACKET);
+                case ',': return single(COMMA);
+                case ';': return single(SEMICOLON);
+                case ':': return single(COLON);
                 default:
-                    throw new RuntimeException("Unexpected char: " + c + " at pos " + pos);
+                    throw new RuntimeException("Unexpected char: " + (char) c + " at " + position());
             }
         }
+    }
+
+    // === Source buffer ===
 
-        // On EOF, unwind remaining indentations
-        while (indentStack.size() > 1) {
-            indentStack.pop();
-            tokens.add(new Token(Token.Type.DEDENT, ""));
+    // The character `ahead` positions past the current one (0 or 1), or -1 past the end.
+    private int peek(int ahead) {
+        if (limit - start <= ahead) fill(ahead + 1);
+        return limit - start > ahead ? buf[start + ahead] : -1;
+    }
+
+    private void skip() {
+        if (buf[start++] == '\n') {
+            line++;
+            column = 1;
+        } else {
+            column++;
         }
+    }
 
-        tokens.add(new Token(Token.Type.EOF, ""));
-        return tokens;
+    private String position() {
+        return "line " + line + ", column " + column;
+    }
+
+    // Read until at least `wanted` characters are buffered or the input ends.
+    // "\r\n" is read as "\n".
+    private void fill(int wanted) {
+        if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, limit - start);
+            limit -= start;
+            start = 0;
+        }
+        while (!eof && limit < wanted) {
+            int n;
+            try {
+                n = in.read(buf, limit, buf.length - limit);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read source: " + e.getMessage(), e);
+            }
+            if (n < 0) {
+                eof = true;
+                if (heldCR) buf[limit++] = '\r';
+                heldCR = false;
+                break;
+            }
+            int end = limit + n;
+            int out = limit;
+            for (int i = limit; i < end; i++) {
+                char ch = buf[i];
+                if (heldCR) {
+                    heldCR = false;
+                    if (ch != '\n') buf[out++] = '\r';
+                }
+                if (ch == '\r') heldCR = true;
+                else buf[out++] = ch;
+            }
+            limit = out;
+        }
+    }
+
+    // === Scanning ===
+
+    private Token single(Token token) {
+        skip();
+        return token;
+    }
+
+    // `one`, or `two` if the next character is `second`. A null `one` means the first
+    // character is not an operator by itself.
+    private Token operator(Operator one, char second, Operator two) {
+        int c = peek(0);
+        if (peek(1) == second) {
+            skip();
+            skip();
+            return OPERATORS[two.ordinal()];
+        }
+        if (one == null) throw new RuntimeException("Unexpected char: " + (char) c + " at " + position());
+        skip();
+        return OPERATORS[one.ordinal()];
     }
 
     private int countIndentation() {
         int count = 0;
-        int i = lineStartPos;
-        while (i < input.length()) {
-            char c = input.charAt(i);
+        while (true) {
+            int c = peek(0);
             if (c == ' ') count++;
             else if (c == '\t') count += 4; // treat tab as 4 spaces (adjust as needed)
             else break;
-            i++;
+            skip();
         }
-        pos = i;  // advance pos past indentation
         return count;
     }
 
     private void skipComment() {
-        while (pos < input.length() && input.charAt(pos) != '\n') {
-            pos++;
+        while (peek(0) >= 0 && peek(0) != '\n') {
+            skip();
         }
     }
 
-    private char peekNext() {
-        if (pos + 1 >= input.length()) return '\0';
-        return input.charAt(pos + 1);
-    }
-
     private Token number() {
-        int start = pos;
-        while (pos < input.length() && Character.isDigit(input.charAt(pos))) {
-            pos++;
-        }
+        textLength = 0;
+        while (isDigit(peek(0))) append();
         // Check for decimal part
-        if (pos < input.length() && input.charAt(pos) == '.') {
-            pos++;
-            if (pos >= input.length() || !Character.isDigit(input.charAt(pos))) {
-                throw new RuntimeException("Invalid float literal at pos " + pos);
-            }
-            while (pos < input.length() && Character.isDigit(input.charAt(pos))) {
-                pos++;
+        if (peek(0) == '.') {
+            append();
+            if (!isDigit(peek(0))) {
+                throw new RuntimeException("Invalid float literal at " + position());
             }
+            while (isDigit(peek(0))) append();
         }
-        String val = input.substring(start, pos);
-        return new Token(Token.Type.NUMBER, val);
+        return new Token(Token.Type.NUMBER, symbols.intern(text, textLength));
     }
 
     private Token string() {
-        char quote = input.charAt(pos);
-        pos++; // skip opening quote
-        int start = pos;
-        while (pos < input.length() && input.charAt(pos) != quote) {
+        int quote = peek(0);
+        skip(); // skip opening quote
+        String begin = position();
+        StringBuilder sb = new StringBuilder();
+        while (peek(0) >= 0 && peek(0) != quote) {
             // TODO: Handle escape sequences if needed
-            pos++;
+            sb.append((char) peek(0));
+            skip();
         }
-        if (pos >= input.length()) {
-            throw new RuntimeException("Unterminated string literal starting at " + start);
+        if (peek(0) < 0) {
+            throw new RuntimeException("Unterminated string literal starting at " + begin);
         }
-        String val = input.substring(start, pos);
-        pos++; // skip closing quote
-        return new Token(Token.Type.STRING, val);
+        skip(); // skip closing quote
+        return new Token(Token.Type.STRING, sb.toString());
     }
 
     private Token identifier() {
-        int start = pos;
-        while (pos < input.length() && (Character.isLetterOrDigit(input.charAt(pos)) || input.charAt(pos) == '_')) {
-            pos++;
-        }
-        String word = input.substring(start, pos);
+        textLength = 0;
+        while (peek(0) >= 0 && (Character.isLetterOrDigit(peek(0)) || peek(0) == '_')) append();
+        String word = symbols.intern(text, textLength);
         Token.Type type = keywords.getOrDefault(word, Token.Type.INDENT);
         return new Token(type, word);
     }
 
-    private Token operator() {
-        // Support multi-char operators like ==, !=, <=, >=, &&, ||
-        if (pos + 1 < input.length()) {
-            String two = input.substring(pos, pos + 2);
-            if (two.equals("==") || two.equals("!=") || two.equals("<=") || two.equals(">=") ||
-                    two.equals("&&") || two.equals("||")) {
-                pos += 2;
-                return new Token(Token.Type.OP, two);
-            }
+    private void append() {
+        if (textLength == text.length) text = Arrays.copyOf(text, textLength * 2);
+        text[textLength++] = (char) peek(0);
+        skip();
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= 0 && Character.isDigit(c);
+    }
+}
+
+// === Symbol Table ===
+// Interns names read by the Lexer straight from its character buffer: a name seen
+// before costs no allocation. Open addressing with linear probing.
+final class SymbolTable {
+    private String[] table = new String[256];
+    private int size = 0;
+
+    String intern(char[] chars, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) hash = 31 * hash + chars[i];  // same as String.hashCode()
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            String s = table[i];
+            if (s == null) break;
+            if (s.hashCode() == hash && matches(s, chars, length)) return s;
+        }
+        if (2 * (size + 1) > table.length) grow();
+        String s = new String(chars, 0, length);
+        insert(s);
+        size++;
+        return s;
+    }
+
+    private static boolean matches(String s, char[] chars, int length) {
+        if (s.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) != chars[i]) return false;
+        }
+        return true;
+    }
+
+    private void insert(String s) {
+        int mask = table.length - 1;
+        int i = s.hashCode() & mask;
+        while (table[i] != null) i = (i + 1) & mask;
+        table[i] = s;
+    }
+
+    private void grow() {
+        String[] old = table;
+        table = new String[old.length * 2];
+        for (String s : old) {
+            if (s != null) insert(s);
         }
-        char one = input.charAt(pos++);
-        return new Token(Token.Type.OP, String.valueOf(one));
     }
 }
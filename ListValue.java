@@ -0,0 +1,259 @@
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
+
+// === List Value ===
+// The value of a list literal `[a, b, c]`: a growable array whose storage follows what
+// it holds. A list stays a long[] while every element is an integer and a double[]
+// while every element is a double; the first element of another kind (a string, a
+// boolean, or an integer in a double list) converts it to an Object[] of boxed values
+// for good. The VM reads and writes integer and double elements straight from its
+// unboxed registers (see EvalTask), so a numeric list never boxes, and sum(), sort()
+// and map() with a numeric builtin are plain loops over the primitive array.
+//
+// Lists are mutable and passed by reference; two lists are equal only if they are the
+// same list. Tasks that share a list must not change it at the same time.
+final class ListValue {
+    static final int EMPTY = 0, LONGS = 1, DOUBLES = 2, OBJECTS = 3;
+    private static final int MIN_CAPACITY = 8;
+
+    int kind = EMPTY;
+    long[] longs;       // the elements while kind == LONGS
+    double[] doubles;   // ... DOUBLES
+    Object[] objects;   // ... OBJECTS, boxed as outside the VM (see Values.box)
+    int size;
+
+    // Check an index, for callers that access the arrays directly.
+    int index(long i) {
+        if (i < 0 || i >= size) throw new RuntimeException("List index out of range: " + i + " (size " + size + ")");
+        return (int) i;
+    }
+
+    int size() {
+        return size;
+    }
+
+    Object get(long i) {
+        int at = index(i);
+        switch (kind) {
+            case LONGS: return box(longs[at]);
+            case DOUBLES: return doubles[at];
+            default: return objects[at];
+        }
+    }
+
+    void set(long i, Object value) {
+        int at = index(i);
+        if (kind == LONGS && isInteger(value)) longs[at] = ((Number) value).longValue();
+        else if (kind == DOUBLES && value instanceof Double) doubles[at] = (Double) value;
+        else {
+            toObjects();
+            objects[at] = value;
+        }
+    }
+
+    void setLong(long i, long value) {
+        int at = index(i);
+        if (kind == LONGS) longs[at] = value;
+        else set(at, box(value));
+    }
+
+    void setDouble(long i, double value) {
+        int at = index(i);
+        if (kind == DOUBLES) doubles[at] = value;
+        else set(at, value);
+    }
+
+    void add(Object value) {
+        if (isInteger(value)) addLong(((Number) value).longValue());
+        else if (value instanceof Double) addDouble((Double) value);
+        else {
+            toObjects();
+            ensureCapacity();
+            objects[size++] = value;
+        }
+    }
+
+    void addLong(long value) {
+        if (kind == EMPTY) {
+            kind = LONGS;
+            longs = new long[MIN_CAPACITY];
+        }
+        if (kind != LONGS) {
+            toObjects();
+            ensureCapacity();
+            objects[size++] = box(value);
+            return;
+        }
+        ensureCapacity();
+        longs[size++] = value;
+    }
+
+    void addDouble(double value) {
+        if (kind == EMPTY) {
+            kind = DOUBLES;
+            doubles = new double[MIN_CAPACITY];
+        }
+        if (kind != DOUBLES) {
+            toObjects();
+            ensureCapacity();
+            objects[size++] = value;
+            return;
+        }
+        ensureCapacity();
+        doubles[size++] = value;
+    }
+
+    private void ensureCapacity() {
+        int capacity = kind == LONGS ? longs.length : kind == DOUBLES ? doubles.length : objects.length;
+        if (size < capacity) return;
+        int grown = Math.max(MIN_CAPACITY, capacity * 2);
+        switch (kind) {
+            case LONGS: longs = Arrays.copyOf(longs, grown); break;
+            case DOUBLES: doubles = Arrays.copyOf(doubles, grown); break;
+            default: objects = Arrays.copyOf(objects, grown); break;
+        }
+    }
+
+    // Switch to boxed storage, keeping the elements.
+    private void toObjects() {
+        if (kind == OBJECTS) return;
+        Object[] boxed = new Object[Math.max(MIN_CAPACITY, size)];
+        for (int i = 0; i < size; i++) boxed[i] = kind == LONGS ? box(longs[i]) : (Object) doubles[i];
+        kind = OBJECTS;
+        objects = boxed;
+        longs = null;
+        doubles = null;
+    }
+
+    // === Bulk operations ===
+
+    // The elements from index `from` up to, not including, `to`, as a new list.
+    ListValue slice(long from, long to) {
+        if (from < 0 || to > size || from > to) {
+            throw new RuntimeException("slice() range " + from + ".." + to + " is outside the list (size " + size + ")");
+        }
+        ListValue part = new ListValue();
+        part.kind = kind;
+        part.size = (int) (to - from);
+        switch (kind) {
+            case LONGS: part.longs = Arrays.copyOfRange(longs, (int) from, (int) to); break;
+            case DOUBLES: part.doubles = Arrays.copyOfRange(doubles, (int) from, (int) to); break;
+            case OBJECTS: part.objects = Arrays.copyOfRange(objects, (int) from, (int) to); break;
+            default: break;
+        }
+        return part;
+    }
+
+    // The sum of the elements, with the VM's arithmetic: integers stay integers until
+    // one is a double or the total overflows 64 bits.
+    Object sum() {
+        if (kind == DOUBLES) {
+            double total = 0;
+            for (int i = 0; i < size; i++) total += doubles[i];
+            return total;
+        }
+        long total = 0;
+        int i = 0;
+        if (kind == LONGS) {
+            try {
+                for (; i < size; i++) total = Math.addExact(total, longs[i]);
+                return box(total);
+            } catch (ArithmeticException overflow) {
+                double rest = total;
+                for (; i < size; i++) rest += longs[i];
+                return rest;
+            }
+        }
+        double dtotal = 0;
+        boolean isDouble = false;
+        for (; i < size; i++) {
+            Object o = objects[i];
+            if (!(o instanceof Number)) throw new RuntimeException("sum() expects a list of numbers, got: " + o);
+            if (!isDouble && isInteger(o)) {
+                try {
+                    total = Math.addExact(total, ((Number) o).longValue());
+                    continue;
+                } catch (ArithmeticException overflow) {
+                    // fall through to floating point
+                }
+            }
+            if (!isDouble) {
+                isDouble = true;
+                dtotal = total;
+            }
+            dtotal += ((Number) o).doubleValue();
+        }
+        return isDouble ? (Object) dtotal : box(total);
+    }
+
+    // Sort in place, ascending: numbers by value, or strings alphabetically.
+    void sort() {
+        switch (kind) {
+            case LONGS: Arrays.sort(longs, 0, size); return;
+            case DOUBLES: Arrays.sort(doubles, 0, size); return;
+            case EMPTY: return;
+            default: break;
+        }
+        boolean numbers = true, strings = true;
+        for (int i = 0; i < size; i++) {
+            numbers &= objects[i] instanceof Number;
+            strings &= objects[i] instanceof String;
+        }
+        if (numbers) Arrays.sort(objects, 0, size, ListValue::compareNumbers);
+        else if (strings) Arrays.sort(objects, 0, size);
+        else throw new RuntimeException("sort() expects a list of numbers or a list of strings");
+    }
+
+    private static int compareNumbers(Object x, Object y) {
+        if (isInteger(x) && isInteger(y)) return Long.compare(((Number) x).longValue(), ((Number) y).longValue());
+        return Double.compare(((Number) x).doubleValue(), ((Number) y).doubleValue());
+    }
+
+    // fn applied to each element, as a new list. A numeric builtin runs straight over
+    // a numeric list's array.
+    ListValue map(UnaryNumeric fn) {
+        ListValue result = new ListValue();
+        if (kind == LONGS && fn.ints != null) {
+            result.kind = LONGS;
+            result.longs = new long[Math.max(MIN_CAPACITY, size)];
+            for (int i = 0; i < size; i++) result.longs[i] = fn.ints.applyAsLong(longs[i]);
+        } else if (kind == LONGS || kind == DOUBLES) {
+            result.kind = DOUBLES;
+            result.doubles = new double[Math.max(MIN_CAPACITY, size)];
+            for (int i = 0; i < size; i++) {
+                result.doubles[i] = fn.doubles.applyAsDouble(kind == LONGS ? longs[i] : doubles[i]);
+            }
+        } else {
+            return map(fn::call1);
+        }
+        result.size = size;
+        return result;
+    }
+
+    ListValue map(UnaryOperator<Object> fn) {
+        ListValue result = new ListValue();
+        for (int i = 0; i < size; i++) result.add(fn.apply(get(i)));
+        return result;
+    }
+
+    // === Helpers ===
+
+    private static boolean isInteger(Object o) {
+        return o instanceof Integer || o instanceof Long;
+    }
+
+    private static Object box(long v) {
+        return Values.fitsInt(v) ? (Object) (int) v : (Object) v;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) sb.append(", ");
+            Object element = get(i);
+            sb.append(element == this ? "[...]" : String.valueOf(element));
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -2,38 +2,128 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.io.IOException;
-import java.util.List;
+import java.io.Reader;
 
 public class Main {
     public static void main(String[] args) {
-        // Read source code from input.txt
+        // Optional: --workers N runs spawned tasks on N threads
+        //           --stack-kb N limits each task's call stack to N KB
+        //           --memo-size N keeps up to N results per memoized function
+        //           --no-memo turns memoization of pure functions off
+        //           --memo-stats prints memo hits and misses when the program ends
+        //           --cache-dir DIR keeps compiled programs in DIR (default ~/.cache/javainterpreter)
+        //           --no-cache always compiles from source
+        //           --output FILE writes the program's prints to FILE instead of stdout
+        //           --profile FILE samples the running script and writes folded stacks to FILE
+        //           --metrics prints task, function and builtin counters when the program ends
+        int workers = 1;
+        long stackKb = TaskStack.DEFAULT_BUDGET / 1024;
+        int memoSize = Memo.DEFAULT_CAPACITY;
+        boolean memoStats = false;
+        boolean printMetrics = false;
+        Path cacheDir = Paths.get(System.getProperty("user.home"), ".cache", "javainterpreter");
+        Path outputFile = null;
+        Path profileFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--no-memo")) memoSize = 0;
+            if (args[i].equals("--memo-stats")) memoStats = true;
+            if (args[i].equals("--metrics")) printMetrics = true;
+            if (args[i].equals("--no-cache")) cacheDir = null;
+            if (i + 1 == args.length) continue;
+            if (args[i].equals("--workers")) workers = Integer.parseInt(args[i + 1]);
+            if (args[i].equals("--stack-kb")) stackKb = Long.parseLong(args[i + 1]);
+            if (args[i].equals("--memo-size")) memoSize = Integer.parseInt(args[i + 1]);
+            if (args[i].equals("--cache-dir")) cacheDir = Paths.get(args[i + 1]);
+            if (args[i].equals("--output")) outputFile = Paths.get(args[i + 1]);
+            if (args[i].equals("--profile")) profileFile = Paths.get(args[i + 1]);
+        }
+
+        // A program compiled before from the same source skips straight to running.
         Path path = Paths.get("input.txt");
-        String code = "";
-        try {
-            code = Files.readString(path);
-        } catch (IOException e) {
-            System.err.println("Failed to read input.txt: " + e.getMessage());
-            return;
+        Path cached = null;
+        Chunk chunk = null;
+        if (cacheDir != null) {
+            try {
+                cached = ProgramCache.pathFor(cacheDir, path, memoSize);
+            } catch (IOException e) {
+                System.err.println("Failed to read input.txt: " + e.getMessage());
+                return;
+            }
+            chunk = ProgramCache.load(cached);
         }
 
-        // Lex → tokens
-        Lexer lexer = new Lexer(code);
-        List<Token> tokens = lexer.tokenize();
+        if (chunk == null) {
+            // Read source code from input.txt, streaming: Lex → tokens on demand, Parse → AST
+            ASTNode program;
+            try (Reader source = Files.newBufferedReader(path)) {
+                Lexer lexer = new Lexer(source);
+
+//                 Debug: Print all tokens to see what the lexer produces (using a second reader)
+//                 for (Token token : new Lexer(Files.newBufferedReader(path)).tokenize()) {
+//                     System.out.println(token);
+//                 }
 
-//         Debug: Print all tokens to see what the lexer produces
-//         System.out.println("Tokens:");
-//         for (int i = 0; i < tokens.size(); i++) {
-//             Token token = tokens.get(i);
-//             System.out.println(i + ": " + token.type + "(" + token.value + ")");
-//         }
-//         System.out.println();
+                program = new Parser(lexer).parse();
+            } catch (IOException e) {
+                System.err.println("Failed to read input.txt: " + e.getMessage());
+                return;
+            }
 
-        // Parse → AST
-        Parser parser = new Parser(tokens);
-        ASTNode program = parser.parse();
+            // Optimize → fold constants, drop dead branches, find pure functions
+            program = Optimizer.optimize(program);
+
+            // Compile → bytecode (once, before anything runs)
+            chunk = new Compiler().setMemoCapacity(memoSize).compile(program);
+
+            if (cached != null) {
+                try {
+                    ProgramCache.store(cached, chunk);
+                } catch (IOException e) {
+                    // Not fatal: the program just compiles again next time.
+                }
+            }
+        }
+
+        Output output = Output.STDOUT;
+        if (outputFile != null) {
+            try {
+                output = Output.toFile(outputFile);
+            } catch (IOException e) {
+                System.err.println("Failed to open " + outputFile + ": " + e.getMessage());
+                return;
+            }
+        }
 
         // Interpret — errors are caught and reported inside Interpreter
-        Interpreter interpreter = new Interpreter();
-        interpreter.execute(program);
+        Interpreter interpreter = new Interpreter(workers);
+        interpreter.setStackBudget(stackKb * 1024);
+        interpreter.setOutput(output);
+        Profiler profiler = null;
+        if (profileFile != null) {
+            profiler = new Profiler(Profiler.DEFAULT_INTERVAL_NANOS);
+            interpreter.setProfiler(profiler);
+            profiler.start();
+        }
+        Metrics metrics = printMetrics ? new Metrics() : null;
+        interpreter.setMetrics(metrics);
+        interpreter.execute(chunk);
+        if (metrics != null) metrics.publish(MetricsSink.printingTo(System.err));
+        if (profiler != null) {
+            profiler.stop();
+            try {
+                profiler.writeFolded(profileFile);
+            } catch (IOException e) {
+                System.err.println("Failed to write " + profileFile + ": " + e.getMessage());
+            }
+            profiler.report(System.err, 5);
+        }
+        if (outputFile != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                System.err.println("Failed to write " + outputFile + ": " + e.getMessage());
+            }
+        }
+        if (memoStats) Memo.report(chunk);
     }
 }
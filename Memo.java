@@ -0,0 +1,79 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// === Memo Cache ===
+// Remembered results of one pure user function (see Optimizer), keyed on its
+// argument values. Bounded: once full, the least recently used entry is evicted.
+// Only immutable values are remembered (numbers, booleans, null and short strings),
+// both as arguments and as results, so a hit gives back exactly what running the
+// call would have, and no entry can grow without bound.
+final class Memo {
+    static final int DEFAULT_CAPACITY = 1024;   // entries per function
+    private static final int MAX_STRING = 256;  // longest string argument or result kept
+
+    // Returned by get() when there is no entry; a remembered null is stored as NULL.
+    static final Object MISS = new Object();
+    private static final Object NULL = new Object();
+
+    final int capacity;
+    private final LinkedHashMap<Object, Object> entries;
+    private long hits, misses;
+
+    Memo(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // The key for arguments in registers first .. first+argc-1, or null if one of them
+    // cannot be part of a key.
+    static Object key(Object[] r, long[] p, int first, int argc) {
+        if (argc == 1) {
+            Object arg = Values.box(r[first], p[first]);
+            return cacheable(arg) ? (arg == null ? NULL : arg) : null;
+        }
+        Object[] args = new Object[argc];
+        for (int i = 0; i < argc; i++) {
+            Object arg = Values.box(r[first + i], p[first + i]);
+            if (!cacheable(arg)) return null;
+            args[i] = arg;
+        }
+        return Arrays.asList(args);
+    }
+
+    synchronized Object get(Object key) {
+        Object value = entries.get(key);
+        if (value == null) {
+            misses++;
+            return MISS;
+        }
+        hits++;
+        return value == NULL ? null : value;
+    }
+
+    synchronized void put(Object key, Object value) {
+        if (cacheable(value)) entries.put(key, value == null ? NULL : value);
+    }
+
+    synchronized String stats() {
+        return hits + " hits, " + misses + " misses, " + entries.size() + " entries";
+    }
+
+    private static boolean cacheable(Object value) {
+        return value == null || value instanceof Integer || value instanceof Long || value instanceof Double
+                || value instanceof Boolean || (value instanceof String && ((String) value).length() <= MAX_STRING);
+    }
+
+    // Print the counters of every memoized function in `program` and its nested chunks.
+    static void report(Chunk program) {
+        if (program.memo != null) System.err.println("memo " + program.name + ": " + program.memo.stats());
+        for (Object k : program.constants) {
+            if (k instanceof Chunk) report((Chunk) k);
+        }
+    }
+}
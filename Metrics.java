@@ -0,0 +1,72 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// === Execution Metrics ===
+// Counters and histograms of what the tasks of one or more runs did:
+//   tasks, steps             tasks finished and instructions executed
+//   task.steps               instructions per finished task (histogram)
+//   task.wall_ns             creation to finish of each task (histogram)
+//   queue.wait_ns            time a task sat in the ready queue before each turn (histogram)
+//   function.NAME.calls      calls of a user function, memoized results included
+//   function.NAME.time_ns    wall time inside it, callees included
+//   builtin.NAME.calls       calls of a builtin
+// Every counter is a LongAdder, which stripes its cells across threads, so tasks on
+// different workers do not contend when they record. Recording is off unless a
+// Metrics is handed to the Interpreter or Engine; with it off, EvalTask pays one null
+// check per turn and per call. publish() hands a snapshot to any MetricsSink.
+public final class Metrics {
+    final LongAdder tasks = new LongAdder();
+    final LongAdder steps = new LongAdder();
+    final Histogram taskSteps = new Histogram();
+    final Histogram taskNanos = new Histogram();
+    final Histogram queueWait = new Histogram();
+    private final Map<Chunk, FunctionStats> functions = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> builtins = new ConcurrentHashMap<>();
+
+    static final class FunctionStats {
+        final LongAdder calls = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+    }
+
+    FunctionStats function(Chunk body) {
+        FunctionStats stats = functions.get(body);
+        return stats != null ? stats : functions.computeIfAbsent(body, b -> new FunctionStats());
+    }
+
+    void builtinCall(String name) {
+        LongAdder calls = builtins.get(name);
+        if (calls == null) calls = builtins.computeIfAbsent(name, n -> new LongAdder());
+        calls.increment();
+    }
+
+    void taskFinished(long taskSteps, long wallNanos) {
+        tasks.increment();
+        this.taskSteps.record(taskSteps);
+        taskNanos.record(wallNanos);
+    }
+
+    // Report every metric to `sink`, functions and builtins in name order. Functions
+    // that share a name (nested definitions) are reported together.
+    public void publish(MetricsSink sink) {
+        sink.counter("tasks", tasks.sum());
+        sink.counter("steps", steps.sum());
+        sink.histogram("task.steps", taskSteps);
+        sink.histogram("task.wall_ns", taskNanos);
+        sink.histogram("queue.wait_ns", queueWait);
+        Map<String, long[]> byName = new TreeMap<>();
+        for (Map.Entry<Chunk, FunctionStats> e : functions.entrySet()) {
+            long[] totals = byName.computeIfAbsent(e.getKey().name, n -> new long[2]);
+            totals[0] += e.getValue().calls.sum();
+            totals[1] += e.getValue().nanos.sum();
+        }
+        for (Map.Entry<String, long[]> e : byName.entrySet()) {
+            sink.counter("function." + e.getKey() + ".calls", e.getValue()[0]);
+            sink.counter("function." + e.getKey() + ".time_ns", e.getValue()[1]);
+        }
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(builtins).entrySet()) {
+            sink.counter("builtin." + e.getKey() + ".calls", e.getValue().sum());
+        }
+    }
+}
@@ -0,0 +1,23 @@
+import java.io.PrintStream;
+
+// === Metrics Sink ===
+// Where published metrics go: a log, a monitoring client, a test.
+public interface MetricsSink {
+    void counter(String name, long value);
+
+    void histogram(String name, Histogram histogram);
+
+    // One line per metric on `out`.
+    static MetricsSink printingTo(PrintStream out) {
+        return new MetricsSink() {
+            public void counter(String name, long value) {
+                out.printf("%-32s %d%n", name, value);
+            }
+
+            public void histogram(String name, Histogram h) {
+                out.printf("%-32s count=%d mean=%.1f p50<=%d p99<=%d max<=%d%n", name, h.count(), h.mean(),
+                        h.percentile(0.5), h.percentile(0.99), h.percentile(1));
+            }
+        };
+    }
+}
@@ -0,0 +1,93 @@
+// === Register Bytecode Opcodes ===
+// Every instruction is an opcode word followed by its operand words in Chunk.code.
+// Register operands (a, b, c) are relative to the current frame's base;
+// k is an index into the chunk's constant pool.
+final class OpCode {
+    private OpCode() {}
+
+    public static final int CONST     = 0;  // a, k         R[a] = K[k]
+    public static final int NULL      = 1;  // a            R[a] = null
+    public static final int MOVE      = 2;  // a, b         R[a] = R[b]
+    public static final int GETVAR    = 3;  // a, k         R[a] = env.get(K[k])
+    public static final int DEFVAR    = 4;  // k, a         env.define(K[k], R[a])
+    public static final int SETVAR    = 5;  // k, a         env.assign(K[k], R[a])
+    // Slot instructions copy a cell (tag and payload, see Values) between a register
+    // and slot i of the scope d levels out. A slot whose `let` has not run yet is
+    // UNSET: GETSLOT and SETSLOT then look the slot's name up in the enclosing scopes.
+    public static final int GETSLOT   = 28; // a, d, i      R[a] = slot d.i, or by name if unset
+    public static final int SETSLOT   = 29; // d, i, a      slot d.i = R[a], or assign by name if unset
+    public static final int DEFSLOT   = 30; // i, a         slot 0.i = R[a]
+    public static final int CONSTI    = 31; // a, n         R[a] = n (int immediate)
+    public static final int UPDSLOT   = 41; // d, i, op, a, t   slot = slot <op> R[a]; R[a] = slot
+                                            //              atomically on shared scopes; R[t] is scratch
+    public static final int FORLOOP   = 43; // i, a, n, op, t, target   slot i += n;
+                                            //              if (slot i <op> R[a]) pc = target; R[t], R[t+1] are scratch
+
+    public static final int ADD       = 6;  // a, b, c      R[a] = R[b] + R[c]
+    public static final int SUB       = 7;
+    public static final int MUL       = 8;
+    public static final int DIV       = 9;
+    public static final int EQ        = 10;
+    public static final int NE        = 11;
+    public static final int LT        = 12;
+    public static final int LE        = 13;
+    public static final int GT        = 14;
+    public static final int GE        = 15;
+    public static final int AND       = 16;
+    public static final int OR        = 17;
+    public static final int NOT       = 18; // a, b         R[a] = !R[b]
+    public static final int NEG       = 19; // a, b         R[a] = -R[b]
+
+    // Quickened forms: a generic arithmetic/comparison site rewrites itself to the
+    // int-only handler once it sees two ints, and back if it ever sees anything else.
+    public static final int ADD_II    = 32; // a, b, c
+    public static final int SUB_II    = 33;
+    public static final int MUL_II    = 34;
+    public static final int EQ_II     = 35;
+    public static final int NE_II     = 36;
+    public static final int LT_II     = 37;
+    public static final int LE_II     = 38;
+    public static final int GT_II     = 39;
+    public static final int GE_II     = 40;
+
+    public static final int JMP       = 20; // target       pc = target
+    public static final int JMPF      = 21; // a, target    if !truthy(R[a]) pc = target
+
+    public static final int PRINT     = 22; // a            println(R[a])
+    public static final int CALL      = 23; // a, k, b, n, s    R[a] = K[k](R[b] .. R[b+n-1]);
+                                            //              s is the call site's inline cache, or -1
+    public static final int RETURN    = 24; // a            return R[a] to the caller
+    public static final int TAILCALL  = 42; // k, b, n, s   return K[k](R[b] .. R[b+n-1]), reusing this frame;
+                                            //              always followed by RETURN b, which a builtin call falls into
+    public static final int DEFFUN    = 25; // k            env.defineFunction(K[k].name, K[k])
+    public static final int ENTER     = 26; // k            env = new Environment(env, K[k] slot names)
+    public static final int EXIT      = 27; //              env = env.parent
+
+    public static final int NEWLIST   = 44; // a, b, n      R[a] = [R[b] .. R[b+n-1]]
+    public static final int GETINDEX  = 45; // a, b, c      R[a] = R[b][R[c]]
+    public static final int SETINDEX  = 46; // a, b, c      R[a][R[b]] = R[c]
+    public static final int NEWDICT   = 47; // a, b, n      R[a] = {R[b]: R[b+1], .. R[b+2n-2]: R[b+2n-1]}
+
+    // Operand word count per opcode, used by the disassembler.
+    static final int[] OPERANDS = {
+        2, 1, 2, 2, 2, 2,
+        3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 2, 2,
+        1, 2,
+        1, 5, 1, 1, 1, 0,
+        3, 3, 2, 2,
+        3, 3, 3, 3, 3, 3, 3, 3, 3,
+        5, 4, 6,
+        3, 3, 3, 3
+    };
+
+    static final String[] NAMES = {
+        "CONST", "NULL", "MOVE", "GETVAR", "DEFVAR", "SETVAR",
+        "ADD", "SUB", "MUL", "DIV", "EQ", "NE", "LT", "LE", "GT", "GE", "AND", "OR", "NOT", "NEG",
+        "JMP", "JMPF",
+        "PRINT", "CALL", "RETURN", "DEFFUN", "ENTER", "EXIT",
+        "GETSLOT", "SETSLOT", "DEFSLOT", "CONSTI",
+        "ADD_II", "SUB_II", "MUL_II", "EQ_II", "NE_II", "LT_II", "LE_II", "GT_II", "GE_II",
+        "UPDSLOT", "TAILCALL", "FORLOOP",
+        "NEWLIST", "GETINDEX", "SETINDEX", "NEWDICT"
+    };
+}
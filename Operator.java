@@ -0,0 +1,41 @@
+// === Operators ===
+// Every operator the Lexer recognizes. Operator tokens carry one of these, and the
+// Parser hands it on to BinaryOpNode and UnaryOpNode, so nothing past the Lexer looks
+// at operator spellings.
+public enum Operator {
+    //        symbol  precedence  binary opcode  unary opcode
+    ADD("+",  5, OpCode.ADD, -1),
+    SUB("-",  5, OpCode.SUB, OpCode.NEG),
+    MUL("*",  6, OpCode.MUL, -1),
+    DIV("/",  6, OpCode.DIV, -1),
+    EQ("==",  3, OpCode.EQ,  -1),
+    NE("!=",  3, OpCode.NE,  -1),
+    LT("<",   4, OpCode.LT,  -1),
+    LE("<=",  4, OpCode.LE,  -1),
+    GT(">",   4, OpCode.GT,  -1),
+    GE(">=",  4, OpCode.GE,  -1),
+    AND("&&", 2, OpCode.AND, -1),
+    OR("||",  1, OpCode.OR,  -1),
+    NOT("!",  0, -1,         OpCode.NOT);
+
+    public final String symbol;
+    public final int precedence;    // binding strength as a binary operator; 0 if it is not one
+    public final int opcode;        // instruction for `a op b`, or -1
+    public final int unaryOpcode;   // instruction for `op a`, or -1
+
+    Operator(String symbol, int precedence, int opcode, int unaryOpcode) {
+        this.symbol = symbol;
+        this.precedence = precedence;
+        this.opcode = opcode;
+        this.unaryOpcode = unaryOpcode;
+    }
+
+    public boolean isUnary() {
+        return unaryOpcode >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return symbol;
+    }
+}
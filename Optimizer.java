@@ -0,0 +1,345 @@
+import java.util.*;
+import java.util.function.Consumer;
+
+// === AST Optimizer ===
+// A pass between the Parser and the Compiler. Each node rewrites itself through
+// ASTNode.optimize(): literal arithmetic and string concatenation are folded into a
+// single literal, `if`/`while` statements whose condition is a literal lose the
+// branch that can never run, and `!!x` used as a condition becomes plain `x`.
+//
+// Folding follows the VM's arithmetic exactly (see EvalTask), so an optimized
+// program prints the same values. An operation the VM would reject at runtime, such
+// as "a" - 1, is left in place so the error still happens when it runs.
+//
+// Inside loops it also finds loop-invariant expressions: calls to pure functions whose
+// arguments cannot change while the loop runs. Each becomes a OnceNode, evaluated by
+// the first iteration that reaches it and reused after that. `for` loops that simply
+// count a variable to a fixed limit become a CountedForNode.
+final class Optimizer {
+    // Returned by the fold helpers when an operation cannot be evaluated ahead of time.
+    static final Object NO_FOLD = new Object();
+
+    private final Set<String> userFunctions = new HashSet<>();
+    private final Set<String> pureFunctions;
+    private final Set<String> mutatingFunctions = new HashSet<>();
+    // Per enclosing function: the variables nothing but the function's own code can
+    // reach (its parameters, unless it defines closures). Empty at the top level.
+    private final Deque<Set<String>> privateNames = new ArrayDeque<>();
+
+    private Optimizer(ASTNode program) {
+        this.pureFunctions = findPureFunctions(program);
+    }
+
+    public static ASTNode optimize(ASTNode program) {
+        return program.optimize(new Optimizer(program));
+    }
+
+    void enterFunction(FunctionNode fn) {
+        boolean closures = effectsOf(fn.body).definesFunctions;
+        privateNames.push(closures ? Collections.emptySet() : new HashSet<>(fn.params));
+    }
+
+    void exitFunction() {
+        privateNames.pop();
+    }
+
+    // The literal node for a folded value.
+    static ASTNode literal(Object value) {
+        if (value instanceof Integer) return new NumberNode((Integer) value);
+        if (value instanceof Long && Values.fitsInt((Long) value)) return new NumberNode((int) (long) (Long) value);
+        if (value instanceof String) return new StringNode((String) value);
+        return new ConstantNode(value);
+    }
+
+    // === Effects ===
+    // What a piece of code does, ignoring scopes: the variables it reads, assigns and
+    // declares, the functions it calls, whether it prints or defines functions, and
+    // whether it makes new lists or dicts or changes existing ones itself.
+    // The bodies of functions it defines are not part of it.
+    static final class Effects {
+        final Set<String> reads = new HashSet<>();
+        final Set<String> writes = new HashSet<>();     // assigned or declared
+        final Set<String> calls = new HashSet<>();
+        boolean prints, definesFunctions, createsContainers, changesContainers;
+    }
+
+    Effects effectsOf(ASTNode node) {
+        Effects effects = new Effects();
+        collect(node, effects);
+        return effects;
+    }
+
+    private static void collect(ASTNode node, Effects effects) {
+        if (node instanceof FunctionNode) {
+            effects.definesFunctions = true;
+            return;
+        }
+        if (node instanceof VariableNode) effects.reads.add(((VariableNode) node).name);
+        else if (node instanceof LetNode) effects.writes.add(((LetNode) node).name);
+        else if (node instanceof AssignNode) effects.writes.add(((AssignNode) node).name);
+        else if (node instanceof PrintNode) effects.prints = true;
+        else if (node instanceof ListNode || node instanceof DictNode) effects.createsContainers = true;
+        else if (node instanceof IndexAssignNode) effects.changesContainers = true;
+        else if (node instanceof FunctionCallNode) {
+            String name = ((FunctionCallNode) node).name;
+            effects.calls.add(name);
+            if (BuiltinsRegistry.MUTATORS.contains(name)) effects.changesContainers = true;
+        }
+        node.forEachChild(child -> collect(child, effects));
+    }
+
+    // === Purity ===
+
+    // True if a call to `name` always returns the same value for the same arguments and
+    // has no other effect.
+    boolean isPureCall(String name) {
+        return userFunctions.contains(name) ? pureFunctions.contains(name) : BuiltinsRegistry.PURE.contains(name);
+    }
+
+    // True if calls to `fn` should be memoized: it is pure and does more than a few
+    // operations, by looping or by calling another user function. Caching a function
+    // that only does arithmetic on its arguments would cost more than it saves.
+    boolean shouldMemoize(FunctionNode fn) {
+        if (!pureFunctions.contains(fn.name) || fn.params.isEmpty()) return false;
+        if (effectsOf(fn.body).calls.stream().anyMatch(userFunctions::contains)) return true;
+        boolean[] loops = { false };
+        forEachNode(fn.body, node -> loops[0] |= node instanceof WhileNode || node instanceof ForNode);
+        return loops[0];
+    }
+
+    private static void forEachNode(ASTNode node, Consumer<ASTNode> f) {
+        f.accept(node);
+        if (!(node instanceof FunctionNode)) node.forEachChild(child -> forEachNode(child, f));
+    }
+
+    // The user functions whose result depends only on their arguments: they print
+    // nothing, define no functions, make or change no lists or dicts (a new one each
+    // call is not the same value), use no variables but their parameters and their own
+    // locals, and call only pure functions. A name defined more than once anywhere in the
+    // program, or named after an effectful builtin, is never pure, as a call could reach
+    // the other definition.
+    private Set<String> findPureFunctions(ASTNode program) {
+        Map<String, FunctionNode> functions = new HashMap<>();
+        Set<String> redefined = new HashSet<>();
+        collectFunctions(program, functions, redefined);
+        userFunctions.addAll(functions.keySet());
+
+        Map<String, Effects> candidates = new HashMap<>();
+        Map<String, Effects> mutating = new HashMap<>();
+        for (FunctionNode fn : functions.values()) {
+            Effects effects = effectsOf(fn.body);
+            mutating.put(fn.name, effects);
+            if (redefined.contains(fn.name) || BuiltinsRegistry.EFFECTFUL.contains(fn.name)) continue;
+            if (effects.prints || effects.definesFunctions || effects.createsContainers || effects.changesContainers) continue;
+            if (!usesOwnVariables(fn.body, new HashSet<>(fn.params))) continue;
+            candidates.put(fn.name, effects);
+        }
+        // Drop candidates that call anything impure until none do.
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            Iterator<Effects> it = candidates.values().iterator();
+            while (it.hasNext()) {
+                for (String callee : it.next().calls) {
+                    if (candidates.containsKey(callee)) continue;
+                    if (!functions.containsKey(callee) && BuiltinsRegistry.PURE.contains(callee)) continue;
+                    it.remove();
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        mutatingFunctions.addAll(redefined);     // only the first definition was looked at
+        findMutatingFunctions(mutating);
+        return new HashSet<>(candidates.keySet());
+    }
+
+    // The user functions that may change a list or dict, directly or through what they
+    // call.
+    private void findMutatingFunctions(Map<String, Effects> functions) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<String, Effects> fn : functions.entrySet()) {
+                if (mutatingFunctions.contains(fn.getKey())) continue;
+                Effects effects = fn.getValue();
+                if (effects.changesContainers || effects.calls.stream().anyMatch(mutatingFunctions::contains)) {
+                    mutatingFunctions.add(fn.getKey());
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private static void collectFunctions(ASTNode node, Map<String, FunctionNode> functions, Set<String> redefined) {
+        if (node instanceof FunctionNode) {
+            FunctionNode fn = (FunctionNode) node;
+            if (functions.putIfAbsent(fn.name, fn) != null) redefined.add(fn.name);
+        }
+        node.forEachChild(child -> collectFunctions(child, functions, redefined));
+    }
+
+    // True if every variable `node` uses is in `defined` (parameters, then each local
+    // from its `let` on) by the time it runs. Anything else, including a local used
+    // before its `let` has run, reaches a variable outside the function.
+    private static boolean usesOwnVariables(ASTNode node, Set<String> defined) {
+        if (node instanceof VariableNode) return defined.contains(((VariableNode) node).name);
+        if (node instanceof AssignNode) {
+            AssignNode assign = (AssignNode) node;
+            return usesOwnVariables(assign.expr, defined) && defined.contains(assign.name);
+        }
+        if (node instanceof LetNode) {
+            LetNode let = (LetNode) node;
+            boolean own = usesOwnVariables(let.expr, defined);
+            defined.add(let.name);
+            return own;
+        }
+        if (node instanceof IfNode) {
+            IfNode stmt = (IfNode) node;
+            return usesOwnVariables(stmt.condition, defined)
+                    && usesOwnVariables(stmt.thenBlock, new HashSet<>(defined))
+                    && (stmt.elseBlock == null || usesOwnVariables(stmt.elseBlock, new HashSet<>(defined)));
+        }
+        if (node instanceof WhileNode) {
+            WhileNode loop = (WhileNode) node;
+            return usesOwnVariables(loop.condition, defined) && usesOwnVariables(loop.body, new HashSet<>(defined));
+        }
+        if (node instanceof ForNode) {
+            // In execution order: the update runs after the body.
+            ForNode loop = (ForNode) node;
+            Set<String> inLoop = new HashSet<>(defined);
+            return (loop.init == null || usesOwnVariables(loop.init, inLoop))
+                    && (loop.condition == null || usesOwnVariables(loop.condition, inLoop))
+                    && usesOwnVariables(loop.body, inLoop)
+                    && (loop.update == null || usesOwnVariables(loop.update, inLoop));
+        }
+        boolean[] own = { true };
+        node.forEachChild(child -> own[0] &= usesOwnVariables(child, defined));
+        return own[0];
+    }
+
+    // === Loop invariants ===
+
+    // The variables whose value may change while a loop with `loop` effects runs. A loop
+    // that may change a list or dict could change any one it can reach, so then every
+    // variable it reads counts as changed as well.
+    Set<String> changedBy(Effects loop) {
+        if (!loop.changesContainers && loop.calls.stream().noneMatch(mutatingFunctions::contains)) return loop.writes;
+        Set<String> changed = new HashSet<>(loop.writes);
+        changed.addAll(loop.reads);
+        return changed;
+    }
+
+    // True if `node` has no effect and yields the same value every time the loop that
+    // changes `loopWrites` (see changedBy) reaches it: it only calls pure functions,
+    // makes no list or dict, and only reads private variables the loop leaves alone.
+    boolean isInvariant(ASTNode node, Set<String> loopWrites) {
+        Effects effects = effectsOf(node);
+        Set<String> local = privateNames.isEmpty() ? Collections.emptySet() : privateNames.peek();
+        return effects.writes.isEmpty() && !effects.prints && !effects.definesFunctions
+                && !effects.createsContainers && !effects.changesContainers
+                && effects.calls.stream().allMatch(this::isPureCall)
+                && local.containsAll(effects.reads) && Collections.disjoint(effects.reads, loopWrites);
+    }
+
+    // True if `node` cannot change while the loop with `loop` effects runs. Beyond
+    // isInvariant(), it may read any variable the loop itself never writes, provided the
+    // loop calls no function that could write it. (Another task writing it meanwhile is
+    // a race either way.)
+    boolean isLoopConstant(ASTNode node, Effects loop) {
+        Set<String> changed = changedBy(loop);
+        if (node.isConstant() || isInvariant(node, changed)) return true;
+        Effects effects = effectsOf(node);
+        return node.isSideEffectFree() && effects.calls.stream().allMatch(this::isPureCall)
+                && loop.calls.stream().allMatch(this::isPureCall)
+                && Collections.disjoint(effects.reads, changed);
+    }
+
+    // Replace each loop-invariant expression in `node` that calls a function by a
+    // OnceNode, collecting them in `hoisted`. An expression an inner loop has already
+    // hoisted is wrapped again if it is invariant in this loop too, so it runs once per
+    // run of this loop instead of once per run of the inner one.
+    ASTNode hoist(ASTNode node, Set<String> loopWrites, List<OnceNode> hoisted) {
+        if (node instanceof FunctionNode) return node;
+        boolean candidate = node instanceof FunctionCallNode || node instanceof BinaryOpNode
+                || node instanceof UnaryOpNode || node instanceof OnceNode;
+        if (candidate && !effectsOf(node).calls.isEmpty() && isInvariant(node, loopWrites)) {
+            OnceNode once = new OnceNode(node);
+            once.at(node);
+            hoisted.add(once);
+            return once;
+        }
+        if (node instanceof OnceNode) return node;
+        return node.map(child -> hoist(child, loopWrites, hoisted));
+    }
+
+    // === Folding ===
+
+    static Object binary(Operator op, Object x, Object y) {
+        switch (op) {
+            case EQ: return equal(x, y);
+            case NE: return !equal(x, y);
+            case AND: return Values.isTruthy(x) && Values.isTruthy(y);
+            case OR: return Values.isTruthy(x) || Values.isTruthy(y);
+            default: break;
+        }
+        if (op == Operator.ADD && (x instanceof String || y instanceof String)) {
+            return String.valueOf(x) + String.valueOf(y);
+        }
+        if (!isNumber(x) || !isNumber(y)) return NO_FOLD;
+
+        if (x instanceof Double || y instanceof Double || op == Operator.DIV) {
+            double a = ((Number) x).doubleValue(), b = ((Number) y).doubleValue();
+            switch (op) {
+                case ADD: return a + b;
+                case SUB: return a - b;
+                case MUL: return a * b;
+                case DIV: return a / b;
+                case LT: return a < b;
+                case LE: return a <= b;
+                case GT: return a > b;
+                case GE: return a >= b;
+                default: return NO_FOLD;
+            }
+        }
+
+        long a = ((Number) x).longValue(), b = ((Number) y).longValue();
+        try {
+            switch (op) {
+                case ADD: return Math.addExact(a, b);
+                case SUB: return Math.subtractExact(a, b);
+                case MUL: return Math.multiplyExact(a, b);
+                case LT: return a < b;
+                case LE: return a <= b;
+                case GT: return a > b;
+                case GE: return a >= b;
+                default: return NO_FOLD;
+            }
+        } catch (ArithmeticException overflow) {
+            double da = a, db = b;
+            return op == Operator.ADD ? da + db : op == Operator.SUB ? da - db : da * db;
+        }
+    }
+
+    static Object unary(Operator op, Object x) {
+        if (op == Operator.NOT) return !Values.isTruthy(x);
+        if (op != Operator.SUB || !isNumber(x)) return NO_FOLD;
+        if (x instanceof Double) return -(Double) x;
+        long v = ((Number) x).longValue();
+        return v == Long.MIN_VALUE ? -(double) v : (Object) (-v);
+    }
+
+    private static boolean isNumber(Object o) {
+        return o instanceof Integer || o instanceof Long || o instanceof Double;
+    }
+
+    private static boolean equal(Object x, Object y) {
+        if (isNumber(x) && isNumber(y)) {
+            if (x instanceof Double || y instanceof Double) {
+                return ((Number) x).doubleValue() == ((Number) y).doubleValue();
+            }
+            return ((Number) x).longValue() == ((Number) y).longValue();
+        }
+        return Objects.equals(x, y);
+    }
+}
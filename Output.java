@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// === Output Sink ===
+// Where `print` writes. Lines collect in a large buffer and reach the underlying
+// channel in big writes, instead of one synchronized, flushing println per statement.
+// The buffer is written out when it fills, at a print more than FLUSH_INTERVAL_NANOS
+// after the last write, when a task finishes or goes to sleep, at the end of a run,
+// and on flush(). All tasks of a run print into the same sink, one whole line at a
+// time, so lines come out in exactly the order the prints ran.
+final class Output {
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+    private static final long FLUSH_INTERVAL_NANOS = 50_000_000L;
+    private static final String NEWLINE = System.lineSeparator();
+
+    // Standard output for tasks that were not given a sink of their own.
+    static final Output STDOUT = stdout();
+
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private final StringBuilder pending;
+    private final ByteBuffer bytes;
+    private final int capacity;
+    private long lastFlush = System.nanoTime();
+
+    Output(WritableByteChannel channel, Charset charset, int capacity) {
+        this.channel = channel;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.capacity = capacity;
+        this.pending = new StringBuilder(capacity);
+        this.bytes = ByteBuffer.allocateDirect(capacity);
+    }
+
+    // A sink writing to System.out, whichever stream that is when the sink flushes.
+    static Output stdout() {
+        OutputStream current = new OutputStream() {
+            public void write(int b) {
+                System.out.write(b);
+            }
+
+            public void write(byte[] b, int off, int len) {
+                PrintStream out = System.out;
+                out.write(b, off, len);
+                out.flush();
+            }
+        };
+        return new Output(Channels.newChannel(current), Charset.defaultCharset(), DEFAULT_CAPACITY);
+    }
+
+    // A sink writing to `file`, replacing its contents. close() it when done.
+    static Output toFile(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        return new Output(channel, Charset.defaultCharset(), DEFAULT_CAPACITY);
+    }
+
+    // Write String.valueOf(value) and a line separator.
+    synchronized void println(Object value) {
+        pending.append(value).append(NEWLINE);
+        if (pending.length() >= capacity || System.nanoTime() - lastFlush > FLUSH_INTERVAL_NANOS) flush();
+    }
+
+    // Write out everything printed so far.
+    synchronized void flush() {
+        lastFlush = System.nanoTime();
+        if (pending.length() == 0) return;
+        try {
+            CharBuffer chars = CharBuffer.wrap(pending);
+            encoder.reset();
+            while (encoder.encode(chars, bytes, true).isOverflow()) drain();
+            while (encoder.flush(bytes).isOverflow()) drain();
+            drain();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write output: " + e.getMessage(), e);
+        } finally {
+            pending.setLength(0);
+        }
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) channel.write(bytes);
+        bytes.clear();
+    }
+
+    // Flush, then close the underlying channel.
+    synchronized void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
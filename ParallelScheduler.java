@@ -0,0 +1,180 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// === Parallel Scheduler ===
+// Runs tasks across N carrier threads. The pool is a ForkJoinPool in async (FIFO)
+// mode: every worker owns a deque, tasks spawned on a worker go onto its own deque,
+// and idle workers steal from the others.
+//
+// A task runs for up to QUANTUM steps per turn and is then pushed to the back of its
+// worker's deque, so tasks still interleave while each turn amortizes the queue cost.
+// Sleeping tasks wait on a single timer thread and parked tasks are held by their
+// Waker only, so neither occupies a worker.
+//
+// The live, sleeping and parked counts change together under the scheduler's
+// monitor, and a parking task is only counted once its Waker has been handed over,
+// so the deadlock check sees a state in which no wake-up can still be on its way.
+//
+// Memory model: a task is stepped by one thread at a time, and handing it between
+// workers goes through the pool, so its own frames and scopes need no locking. The
+// root environment is the only state tasks share; Interpreter calls share() on it
+// (see Environment) so global reads and writes are atomic per variable and
+// `x = x + e` updates are atomic as a whole.
+public class ParallelScheduler implements Scheduler {
+    private static final int QUANTUM = 1024;
+
+    private final ForkJoinPool pool;
+    private final ScheduledThreadPoolExecutor timer;
+    // Guarded by `this`.
+    private int live = 0;
+    private int sleeping = 0;
+    private int parked = 0;
+    private volatile RuntimeException failure;
+
+    public ParallelScheduler(int workers) {
+        this.pool = new ForkJoinPool(workers, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "scheduler-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void submit(CoroTask task) {
+        synchronized (this) {
+            live++;
+        }
+        schedule(new Turn(task));
+    }
+
+    // Blocks until every submitted task (including ones they spawn) has finished,
+    // then rethrows the first task failure, if any.
+    @Override
+    public void run() {
+        try {
+            synchronized (this) {
+                while (live > 0 && failure == null) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+            timer.shutdownNow();
+        }
+        if (failure != null) throw failure;
+    }
+
+    private void schedule(Turn turn) {
+        // From inside a worker, fork() keeps the task on this worker's own deque.
+        if (ForkJoinTask.getPool() == pool) turn.fork();
+        else pool.execute(turn);
+    }
+
+    private synchronized void finished() {
+        if (--live == 0) {
+            notifyAll();
+        } else {
+            checkDeadlock();
+        }
+    }
+
+    // Put a task that still has work back where its suspension (if any) says.
+    private void reschedule(CoroTask task) {
+        Suspend s = task.takeSuspension();
+        if (s == null || s == Suspend.YIELD) {
+            schedule(new Turn(task));
+        } else if (s.isSleep()) {
+            synchronized (this) {
+                sleeping++;
+            }
+            timer.schedule(() -> {
+                synchronized (this) {
+                    sleeping--;
+                }
+                pool.execute(new Turn(task));
+            }, s.delayNanos, TimeUnit.NANOSECONDS);
+        } else {
+            // The Waker may already be called while onPark runs (the value arrived in
+            // the meantime), or from another worker right after it returns.
+            Parking parking = new Parking(task);
+            s.onPark.accept(parking);
+            parking.installed();
+        }
+    }
+
+    // Every live task parked and none sleeping: only a running task could wake one.
+    // Called with the monitor held.
+    private void checkDeadlock() {
+        int p = parked;
+        if (p > 0 && p == live && sleeping == 0) {
+            fail(new RuntimeException("Deadlock: " + p + " task(s) blocked with nothing left to wake them"));
+        }
+    }
+
+    private synchronized void fail(RuntimeException e) {
+        if (failure == null) failure = e;
+        notifyAll();
+    }
+
+    // The Waker of a parked task. The task counts as parked from when its Waker has
+    // been registered until it is woken; one woken during registration never does.
+    private class Parking implements Waker {
+        private final CoroTask task;
+        private boolean counted = false;    // guarded by the scheduler's monitor
+        private boolean woken = false;
+
+        Parking(CoroTask task) {
+            this.task = task;
+        }
+
+        void installed() {
+            synchronized (ParallelScheduler.this) {
+                if (woken) return;
+                counted = true;
+                parked++;
+                checkDeadlock();
+            }
+        }
+
+        public void wake(Object value) {
+            synchronized (ParallelScheduler.this) {
+                if (woken) return;
+                woken = true;
+                if (counted) parked--;
+            }
+            task.resume(value);
+            schedule(new Turn(task));
+        }
+    }
+
+    // One scheduling turn of a task.
+    private class Turn extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final CoroTask task;
+
+        Turn(CoroTask task) {
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if (failure != null) return;
+            try {
+                if (!task.step(QUANTUM)) {
+                    finished();
+                    return;
+                }
+                reschedule(task);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+    }
+}
@@ -1,27 +1,58 @@
 import java.util.*;
 
+// === Parser ===
+// Recursive descent over the tokens the Lexer produces, pulled one at a time with one
+// token of lookahead; the token list is never materialized. Every node gets the
+// source position of its first token (see ASTNode.line).
 public class Parser {
-    private final List<Token> tokens;
-    private int pos = 0;
+    private final Lexer lexer;
+    private Token current;      // the next token to consume
+    private Token next;         // the token after it, once lookAhead() has read it
+    private Token previous;     // the token consumed last
+    private int line, column;           // position of `current`
+    private int nextLine, nextColumn;   // position of `next`
 
-    public Parser(List<Token> tokens) {
-        this.tokens = tokens;
+    public Parser(Lexer lexer) {
+        this.lexer = lexer;
+        this.current = lexer.next();
+        this.line = lexer.line();
+        this.column = lexer.column();
     }
 
     private Token current() {
-        if (pos >= tokens.size()) return new Token(Token.Type.EOF, "");
-        return tokens.get(pos);
+        return current;
+    }
+
+    // Consume the current token and return it.
+    private Token advance() {
+        previous = current;
+        if (next != null) {
+            current = next;
+            line = nextLine;
+            column = nextColumn;
+            next = null;
+        } else {
+            current = lexer.next();
+            line = lexer.line();
+            column = lexer.column();
+        }
+        return previous;
+    }
+
+    // Stamp `node` with a source position taken before parsing it.
+    private static ASTNode at(int line, int column, ASTNode node) {
+        return node.at(line, column);
     }
 
     private void skipNewlines() {
         while (current().type == Token.Type.NEWLINE) {
-            pos++;
+            advance();
         }
     }
 
     private void skipEmptyIndents() {
         while (current().type == Token.Type.INDENT && current().value.isEmpty()) {
-            pos++;
+            advance();
         }
     }
 
@@ -29,7 +60,7 @@ public class Parser {
         skipEmptyIndents();
         skipNewlines();
         if (current().type == type) {
-            return tokens.get(pos++);
+            return advance();
         }
         throw new RuntimeException("Expected token " + type + " but found " + current());
     }
@@ -38,7 +69,7 @@ public class Parser {
         skipEmptyIndents();
         skipNewlines();
         if (current().type == type) {
-            pos++;
+            advance();
             return true;
         }
         return false;
@@ -48,17 +79,23 @@ public class Parser {
         List<ASTNode> statements = new ArrayList<>();
         skipEmptyIndents();
         skipNewlines();
+        int line = this.line, column = this.column;
 
         while (current().type != Token.Type.EOF) {
             if (current().type == Token.Type.EOF) break;
             statements.add(statement());
             skipNewlines();
         }
-        return new BlockNode(statements);
+        return at(line, column, new BlockNode(statements));
     }
 
     private ASTNode statement() {
         skipEmptyIndents();
+        int line = this.line, column = this.column;
+        return at(line, column, statementHere());
+    }
+
+    private ASTNode statementHere() {
         Token tok = current();
         switch (tok.type) {
             case LET:
@@ -76,7 +113,7 @@ public class Parser {
             case RETURN:
                 return returnStatement();
             default:
-                if (tok.type == Token.Type.INDENT && !tok.value.isEmpty() && lookAhead(1).type == Token.Type.EQ) {
+                if (tok.type == Token.Type.INDENT && !tok.value.isEmpty() && lookAhead().type == Token.Type.EQ) {
                     return assignStatement();
                 } else {
                     // Expression statement - consume semicolon here
@@ -90,7 +127,7 @@ public class Parser {
     private void consumeEndOfStatement() {
         // In Python-style syntax, statements can end with newline or semicolon
         if (current().type == Token.Type.SEMICOLON) {
-            pos++;
+            advance();
         }
         // Newlines will be skipped automatically by skipNewlines()
     }
@@ -155,10 +192,11 @@ public class Parser {
 
         ASTNode init = null;
         if (current().type != Token.Type.SEMICOLON) {
+            int line = this.line, column = this.column;
             if (current().type == Token.Type.LET) {
-                init = letStatementWithoutEndConsume();
-            } else if (current().type == Token.Type.INDENT && !current().value.isEmpty() && lookAhead(1).type == Token.Type.EQ) {
-                init = assignStatementWithoutEndConsume();
+                init = at(line, column, letStatementWithoutEndConsume());
+            } else if (current().type == Token.Type.INDENT && !current().value.isEmpty() && lookAhead().type == Token.Type.EQ) {
+                init = at(line, column, assignStatementWithoutEndConsume());
             } else {
                 init = expression();
             }
@@ -231,12 +269,13 @@ public class Parser {
         }
 
         List<ASTNode> stmts = new ArrayList<>();
+        int line = this.line, column = this.column;
 
         // Keep parsing statements until we hit a DEDENT or EOF
         while (current().type != Token.Type.DEDENT && current().type != Token.Type.EOF) {
             // Skip any INDENT tokens that represent the indentation level
             if (current().type == Token.Type.INDENT && current().value.isEmpty()) {
-                pos++;
+                advance();
                 continue;
             }
 
@@ -246,38 +285,42 @@ public class Parser {
 
         // Consume the DEDENT token if present
         if (current().type == Token.Type.DEDENT) {
-            pos++;
+            advance();
         }
 
-        return new BlockNode(stmts);
+        return at(line, column, new BlockNode(stmts));
     }
 
     // Keep the old block method for backward compatibility with braces
     private ASTNode block() {
+        int line = this.line, column = this.column;
         consume(Token.Type.LBRACE);
         List<ASTNode> stmts = new ArrayList<>();
         while (current().type != Token.Type.RBRACE) {
             stmts.add(statement());
         }
         consume(Token.Type.RBRACE);
-        return new BlockNode(stmts);
+        return at(line, column, new BlockNode(stmts));
     }
 
-    // --- Expression Parsing (unchanged) ---
+    // --- Expression Parsing ---
 
     private ASTNode expression() {
         return assignment();
     }
 
     private ASTNode assignment() {
-        ASTNode left = logicalOr();
+        ASTNode left = binary(Operator.OR.precedence);
 
         if (current().type == Token.Type.EQ) {
             consume(Token.Type.EQ);
             ASTNode right = assignment();
             if (left instanceof VariableNode) {
                 String varName = ((VariableNode) left).name;
-                return new AssignNode(varName, right);
+                return new AssignNode(varName, right).at(left);
+            } else if (left instanceof IndexNode) {
+                IndexNode element = (IndexNode) left;
+                return new IndexAssignNode(element.target, element.index, right).at(left);
             } else {
                 throw new RuntimeException("Invalid assignment target");
             }
@@ -286,88 +329,57 @@ public class Parser {
         return left;
     }
 
-    private ASTNode logicalOr() {
-        ASTNode left = logicalAnd();
-        while (matchOperator("||")) {
-            String op = "||";
-            ASTNode right = logicalAnd();
-            left = new BinaryOpNode(left, op, right);
-        }
-        return left;
-    }
-
-    private ASTNode logicalAnd() {
-        ASTNode left = equality();
-        while (matchOperator("&&")) {
-            String op = "&&";
-            ASTNode right = equality();
-            left = new BinaryOpNode(left, op, right);
-        }
-        return left;
-    }
-
-    private ASTNode equality() {
-        ASTNode left = relational();
-        while (matchOperator("==") || matchOperator("!=")) {
-            String op = tokens.get(pos - 1).value;
-            ASTNode right = relational();
-            left = new BinaryOpNode(left, op, right);
-        }
-        return left;
-    }
-
-    private ASTNode relational() {
-        ASTNode left = additive();
-        while (matchOperator("<") || matchOperator("<=") || matchOperator(">") || matchOperator(">=")) {
-            String op = tokens.get(pos - 1).value;
-            ASTNode right = additive();
-            left = new BinaryOpNode(left, op, right);
-        }
-        return left;
-    }
-
-    private ASTNode additive() {
-        ASTNode left = multiplicative();
-        while (matchOperator("+") || matchOperator("-")) {
-            String op = tokens.get(pos - 1).value;
-            ASTNode right = multiplicative();
-            left = new BinaryOpNode(left, op, right);
-        }
-        return left;
-    }
-
-    private ASTNode multiplicative() {
+    // Binary operators by precedence climbing: operands joined by operators that bind
+    // at least as tightly as `minPrecedence`, all left-associative.
+    private ASTNode binary(int minPrecedence) {
         ASTNode left = unary();
-        while (matchOperator("*") || matchOperator("/")) {
-            String op = tokens.get(pos - 1).value;
-            ASTNode right = unary();
-            left = new BinaryOpNode(left, op, right);
+        while (true) {
+            Operator op = currentOperator();
+            if (op == null || op.precedence < minPrecedence) return left;
+            advance();
+            ASTNode right = binary(op.precedence + 1);
+            left = new BinaryOpNode(left, op, right).at(left);
         }
-        return left;
     }
 
     private ASTNode unary() {
-        if (matchOperator("!") || matchOperator("-")) {
-            String op = tokens.get(pos - 1).value;
+        Operator op = currentOperator();
+        if (op != null && op.isUnary()) {
+            int line = this.line, column = this.column;
+            advance();
             ASTNode expr = unary();
-            return new UnaryOpNode(op, expr);
+            return at(line, column, new UnaryOpNode(op, expr));
         }
         return primary();
     }
 
+    // A primary expression, then any indexing after it: xs[i], xs[i][j]. The `[` must
+    // be on the same line, or it starts a list literal on the next one.
     private ASTNode primary() {
         skipEmptyIndents();
+        int line = this.line, column = this.column;
+        ASTNode node = atom(line, column);
+        while (current().type == Token.Type.LBRACKET) {
+            advance();
+            ASTNode index = expression();
+            consume(Token.Type.RBRACKET);
+            node = at(line, column, new IndexNode(node, index));
+        }
+        return node;
+    }
+
+    private ASTNode atom(int line, int column) {
         Token tok = current();
         switch (tok.type) {
             case NUMBER:
-                pos++;
-                return new NumberNode(Integer.parseInt(tok.value));
+                advance();
+                return at(line, column, new NumberNode(Integer.parseInt(tok.value)));
             case STRING:
-                pos++;
-                return new StringNode(tok.value);
+                advance();
+                return at(line, column, new StringNode(tok.value));
             case INDENT:
                 if (!tok.value.isEmpty()) { // Only process non-empty INDENT tokens as identifiers
-                    pos++;
+                    advance();
                     if (match(Token.Type.LPAREN)) {
                         List<ASTNode> args = new ArrayList<>();
                         if (current().type != Token.Type.RPAREN) {
@@ -377,9 +389,9 @@ public class Parser {
                             }
                         }
                         consume(Token.Type.RPAREN);
-                        return new FunctionCallNode(tok.value, args);
+                        return at(line, column, new FunctionCallNode(tok.value, args));
                     }
-                    return new VariableNode(tok.value);
+                    return at(line, column, new VariableNode(tok.value));
                 } else {
                     throw new RuntimeException("Unexpected empty indent token");
                 }
@@ -388,22 +400,49 @@ public class Parser {
                 ASTNode expr = expression();
                 consume(Token.Type.RPAREN);
                 return expr;
+            case LBRACKET: {
+                advance();
+                List<ASTNode> elements = new ArrayList<>();
+                if (current().type != Token.Type.RBRACKET) {
+                    elements.add(expression());
+                    while (match(Token.Type.COMMA)) {
+                        elements.add(expression());
+                    }
+                }
+                consume(Token.Type.RBRACKET);
+                return at(line, column, new ListNode(elements));
+            }
+            case LBRACE: {
+                advance();
+                List<ASTNode> entries = new ArrayList<>();    // key, value, key, value...
+                if (current().type != Token.Type.RBRACE) {
+                    do {
+                        entries.add(expression());
+                        consume(Token.Type.COLON);
+                        entries.add(expression());
+                    } while (match(Token.Type.COMMA));
+                }
+                consume(Token.Type.RBRACE);
+                return at(line, column, new DictNode(entries));
+            }
             default:
                 throw new RuntimeException("Unexpected token " + tok);
         }
     }
 
-    private boolean matchOperator(String op) {
+    // The operator of the current token, or null if it is not an operator.
+    private Operator currentOperator() {
         skipEmptyIndents();
-        if (current().type == Token.Type.OP && current().value.equals(op)) {
-            pos++;
-            return true;
-        }
-        return false;
+        return current().op;
     }
 
-    private Token lookAhead(int offset) {
-        if (pos + offset >= tokens.size()) return new Token(Token.Type.EOF, "");
-        return tokens.get(pos + offset);
+    // The token after the current one.
+    private Token lookAhead() {
+        if (next == null) {
+            next = lexer.next();
+            nextLine = lexer.line();
+            nextColumn = lexer.column();
+        }
+        return next;
     }
 }
\ No newline at end of file
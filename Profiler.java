@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+// === Sampling Profiler ===
+// Finds where a script spends its time without a Java profiler. A background thread
+// wakes every `interval` and records the script-level call stack of every task that is
+// running at that moment: function names and source lines, read off the task's frames
+// (see TaskStack.sample). Tasks that are parked, sleeping or waiting in the ready queue
+// are not sampled, so the profile shows where the CPU went.
+//
+// The result is written in the folded-stack format of flame graph tools, one line per
+// distinct stack with its sample count:
+//
+//   <main>:12;fib:4;fib:4 310
+//
+// Tasks report their turns with enter() and exit(); with profiling off a task holds no
+// Profiler and pays one null check per turn.
+final class Profiler {
+    static final long DEFAULT_INTERVAL_NANOS = 1_000_000;   // 1 kHz
+
+    private final long intervalNanos;
+    private final Set<EvalTask> running = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> stacks = new HashMap<>();   // only touched by the sampler thread
+    private long samples = 0;
+    private volatile boolean stopped = false;
+    private Thread sampler;
+
+    Profiler(long intervalNanos) {
+        this.intervalNanos = intervalNanos;
+    }
+
+    void start() {
+        sampler = new Thread(this::sampleLoop, "profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    // Stop sampling. The results are complete once this returns.
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(sampler);
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // `task` starts or ends a scheduler turn.
+    void enter(EvalTask task) {
+        running.add(task);
+    }
+
+    void exit(EvalTask task) {
+        running.remove(task);
+    }
+
+    private void sampleLoop() {
+        long next = System.nanoTime();
+        while (!stopped) {
+            for (EvalTask task : running) {
+                String stack = task.sampleStack();
+                if (stack != null) {
+                    stacks.merge(stack, 1L, Long::sum);
+                    samples++;
+                }
+            }
+            next += intervalNanos;
+            long wait = next - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            else next = System.nanoTime();   // fell behind: don't try to catch up
+        }
+    }
+
+    // === Reports ===
+
+    // Write every sampled stack in folded format.
+    void writeFolded(Path file) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file)) {
+            for (Map.Entry<String, Long> e : stacks.entrySet()) {
+                out.write(e.getKey());
+                out.write(' ');
+                out.write(Long.toString(e.getValue()));
+                out.write('\n');
+            }
+        }
+    }
+
+    // Print the `top` functions and lines with the most samples of their own (the
+    // innermost frame of a stack).
+    void report(PrintStream out, int top) {
+        out.println("profile: " + samples + " samples");
+        if (samples == 0) return;
+        Map<String, Long> lines = new HashMap<>();
+        Map<String, Long> functions = new HashMap<>();
+        for (Map.Entry<String, Long> e : stacks.entrySet()) {
+            String leaf = e.getKey().substring(e.getKey().lastIndexOf(';') + 1);
+            lines.merge(leaf, e.getValue(), Long::sum);
+            functions.merge(leaf.substring(0, leaf.lastIndexOf(':')), e.getValue(), Long::sum);
+        }
+        printTop(out, "hottest functions", functions, top);
+        printTop(out, "hottest lines", lines, top);
+    }
+
+    private void printTop(PrintStream out, String title, Map<String, Long> counts, int top) {
+        out.println(title + ":");
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        for (Map.Entry<String, Long> e : entries.subList(0, Math.min(top, entries.size()))) {
+            out.printf("  %5.1f%%  %s%n", 100.0 * e.getValue() / samples, e.getKey());
+        }
+    }
+}
@@ -0,0 +1,392 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.List;
+
+// === Compiled Program Cache ===
+// Keeps compiled programs on disk, one file per distinct source, so running the same
+// script again skips the Lexer, Parser, Optimizer and Compiler: the main Chunk and
+// every nested function chunk are read back from a compact binary file.
+//
+// A file is named after the SHA-256 of the source bytes, the compile options that
+// change the output, FORMAT and a fingerprint of the instruction set (every opcode's
+// name, number and operand count), so adding, renumbering or reshaping an opcode
+// retires old files by itself. Bump FORMAT when the file layout or the code generated
+// for existing opcodes changes. Files are written to a temporary name and moved into
+// place, so concurrent runs never see a partial file. A file that fails to load, or
+// whose code refers to a register, constant, call site, jump target, operator or
+// variable slot it does not have, is treated as a miss.
+final class ProgramCache {
+    private ProgramCache() {}
+
+    private static final int MAGIC = 0x4A494331;   // "JIC1"
+    private static final int FORMAT = 4;
+    private static final byte[] INSTRUCTION_SET = fingerprint();
+
+    // Constant pool entry tags
+    private static final byte NULL = 0, INT = 1, LONG = 2, DOUBLE = 3, BOOLEAN = 4, STRING = 5,
+            NAMES = 6, CHUNK = 7;
+
+    // The cache file for `source` compiled with the given memo capacity.
+    static Path pathFor(Path cacheDir, Path source, int memoCapacity) throws IOException {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            if (channel.size() > 0) sha.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        sha.update(ByteBuffer.allocate(8).putInt(FORMAT).putInt(memoCapacity).flip());
+        sha.update(INSTRUCTION_SET);
+        StringBuilder name = new StringBuilder();
+        for (byte b : sha.digest()) name.append(String.format("%02x", b));
+        return cacheDir.resolve(name.append(".jic").toString());
+    }
+
+    private static byte[] fingerprint() {
+        StringBuilder set = new StringBuilder();
+        for (int op = 0; op < OpCode.NAMES.length; op++) {
+            set.append(op).append(' ').append(OpCode.NAMES[op]).append(' ').append(OpCode.OPERANDS[op]).append('\n');
+        }
+        return set.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // The program stored in `file`, or null if there is none or it cannot be read.
+    static Chunk load(Path file) {
+        if (!Files.isRegularFile(file)) return null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT) return null;
+            Chunk program = readChunk(in);
+            if (in.hasRemaining()) return null;
+            verifyScopes(program, new Scopes(program.locals, null));
+            return program;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    // Save `program` as `file`. Failure only costs a recompile next time, so it is
+    // reported to the caller but leaves no partial file behind.
+    static void store(Path file, Chunk program) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), "program", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                writeChunk(out, program);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // === Writing ===
+
+    private static void writeChunk(DataOutputStream out, Chunk chunk) throws IOException {
+        writeString(out, chunk.name);
+        writeStrings(out, chunk.params.toArray(new String[0]));
+        writeStrings(out, chunk.locals);
+        out.writeInt(chunk.code.length);
+        for (int word : chunk.code) out.writeInt(word);
+        out.writeInt(chunk.constants.length);
+        for (Object k : chunk.constants) writeConstant(out, k);
+        out.writeInt(chunk.numRegs);
+        out.writeInt(chunk.inlineCaches.length);
+        out.writeInt(chunk.memo == null ? 0 : chunk.memo.capacity);
+        out.writeInt(chunk.lines.length);
+        for (int word : chunk.lines) out.writeInt(word);
+    }
+
+    private static void writeConstant(DataOutputStream out, Object k) throws IOException {
+        if (k == null) {
+            out.writeByte(NULL);
+        } else if (k instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) k);
+        } else if (k instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) k);
+        } else if (k instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) k);
+        } else if (k instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) k);
+        } else if (k instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) k);
+        } else if (k instanceof String[]) {
+            out.writeByte(NAMES);
+            writeStrings(out, (String[]) k);
+        } else if (k instanceof Chunk) {
+            out.writeByte(CHUNK);
+            writeChunk(out, (Chunk) k);
+        } else {
+            throw new IOException("Cannot cache constant " + k);
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        out.writeInt(strings.length);
+        for (String s : strings) writeString(out, s);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // === Reading ===
+
+    private static Chunk readChunk(ByteBuffer in) {
+        String name = readString(in);
+        List<String> params = List.of(readStrings(in));
+        String[] locals = readStrings(in);
+        int[] code = new int[count(in, 4)];
+        in.asIntBuffer().get(code);
+        in.position(in.position() + 4 * code.length);
+        Object[] constants = new Object[count(in, 1)];
+        for (int i = 0; i < constants.length; i++) constants[i] = readConstant(in);
+        int numRegs = in.getInt();
+        int callSites = in.getInt();
+        int memoCapacity = in.getInt();
+        int[] lines = new int[count(in, 4)];
+        in.asIntBuffer().get(lines);
+        in.position(in.position() + 4 * lines.length);
+        verify(code, constants, numRegs, callSites);
+        return new Chunk(name, params, locals, code, constants, numRegs, callSites, memoCapacity, lines);
+    }
+
+    // Check every operand the VM uses as an index, so a damaged file fails here instead
+    // of with an ArrayIndexOutOfBoundsException or ClassCastException mid-run.
+    private static void verify(int[] code, Object[] k, int numRegs, int callSites) {
+        // Every call site and register is named by some instruction, which bounds how
+        // many there can be.
+        if (numRegs < 0 || numRegs > code.length || callSites < 0 || callSites > code.length) throw new IllegalArgumentException("bad chunk header");
+        boolean[] starts = new boolean[code.length];
+        for (int pc = 0; pc < code.length; pc += 1 + OpCode.OPERANDS[code[pc]]) {
+            if (code[pc] < 0 || code[pc] >= OpCode.OPERANDS.length) throw new IllegalArgumentException("bad opcode");
+            if (pc + OpCode.OPERANDS[code[pc]] >= code.length) throw new IllegalArgumentException("truncated instruction");
+            starts[pc] = true;
+        }
+        for (int pc = 0; pc < code.length; pc += 1 + OpCode.OPERANDS[code[pc]]) {
+            int o = pc + 1;
+            switch (code[pc]) {
+                case OpCode.CONST: regs(code[o], 1, numRegs); constant(k, code[o + 1], null); break;
+                case OpCode.GETVAR: regs(code[o], 1, numRegs); constant(k, code[o + 1], String.class); break;
+                case OpCode.DEFVAR:
+                case OpCode.SETVAR: constant(k, code[o], String.class); regs(code[o + 1], 1, numRegs); break;
+                case OpCode.NULL:
+                case OpCode.PRINT:
+                case OpCode.RETURN:
+                case OpCode.CONSTI: regs(code[o], 1, numRegs); break;
+                case OpCode.GETSLOT: regs(code[o], 1, numRegs); break;
+                case OpCode.SETSLOT: regs(code[o + 2], 1, numRegs); break;
+                case OpCode.DEFSLOT: regs(code[o + 1], 1, numRegs); break;
+                case OpCode.UPDSLOT:
+                    operator(code[o + 2], OpCode.ADD, OpCode.DIV);
+                    regs(code[o + 3], 1, numRegs);
+                    regs(code[o + 4], 1, numRegs);
+                    break;
+                case OpCode.FORLOOP:
+                    operator(code[o + 3], OpCode.LT, OpCode.GE);
+                    regs(code[o + 1], 1, numRegs);
+                    regs(code[o + 4], 2, numRegs);
+                    target(code[o + 5], starts);
+                    break;
+                case OpCode.JMP: target(code[o], starts); break;
+                case OpCode.JMPF: regs(code[o], 1, numRegs); target(code[o + 1], starts); break;
+                case OpCode.CALL:
+                    regs(code[o], 1, numRegs);
+                    constant(k, code[o + 1], String.class);
+                    regs(code[o + 2], code[o + 3], numRegs);
+                    callSite(code[o + 4], callSites);
+                    break;
+                case OpCode.TAILCALL:
+                    constant(k, code[o], String.class);
+                    regs(code[o + 1], code[o + 2], numRegs);
+                    callSite(code[o + 3], callSites);
+                    break;
+                case OpCode.DEFFUN: constant(k, code[o], Chunk.class); break;
+                case OpCode.ENTER: constant(k, code[o], String[].class); break;
+                case OpCode.EXIT: break;
+                case OpCode.NEWLIST: regs(code[o], 1, numRegs); regs(code[o + 1], code[o + 2], numRegs); break;
+                case OpCode.NEWDICT:
+                    regs(code[o], 1, numRegs);
+                    if (code[o + 2] > numRegs) throw new IllegalArgumentException("bad register");
+                    regs(code[o + 1], 2 * code[o + 2], numRegs);
+                    break;
+                default:
+                    // Two- and three-register instructions: arithmetic, comparisons,
+                    // NOT, NEG, MOVE, GETINDEX and SETINDEX.
+                    for (int i = 0; i < OpCode.OPERANDS[code[pc]]; i++) regs(code[o + i], 1, numRegs);
+            }
+        }
+    }
+
+    // === Scopes ===
+    // Slot operands name a scope by how many scopes out it is, so checking them needs
+    // the scopes around each instruction: the chunk's own scope, the ENTERed scopes
+    // open at that point, and, for a function, the scopes open where DEFFUN defined
+    // it. Walking the code as the VM would, every instruction must be reached with the
+    // same scopes open along every path, so each one has a single scope chain to check.
+
+    // One scope of the chain: its slot names, and the scope around it.
+    private static final class Scopes {
+        final String[] names;
+        final Scopes parent;
+
+        Scopes(String[] names, Scopes parent) {
+            this.names = names;
+            this.parent = parent;
+        }
+
+        boolean sameAs(Scopes other) {
+            Scopes a = this, b = other;
+            for (; a != null && b != null; a = a.parent, b = b.parent) {
+                if (a.names != b.names) return false;
+            }
+            return a == b;
+        }
+    }
+
+    // `own` is the chunk's own scope; DEFFUN checks each function it defines in turn.
+    private static void verifyScopes(Chunk chunk, Scopes own) {
+        int[] code = chunk.code;
+        Object[] k = chunk.constants;
+        Scopes[] at = new Scopes[code.length];  // scopes open when each instruction runs
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        reach(0, own, at, work);
+        while (!work.isEmpty()) {
+            int pc = work.pop();
+            Scopes s = at[pc];
+            int o = pc + 1, next = o + OpCode.OPERANDS[code[pc]];
+            switch (code[pc]) {
+                case OpCode.GETSLOT: slot(s, code[o + 1], code[o + 2]); break;
+                case OpCode.SETSLOT:
+                case OpCode.UPDSLOT: slot(s, code[o], code[o + 1]); break;
+                case OpCode.DEFSLOT: slot(s, 0, code[o]); break;
+                case OpCode.FORLOOP:
+                    slot(s, 0, code[o]);
+                    reach(code[o + 5], s, at, work);
+                    break;
+                case OpCode.ENTER:
+                    reach(next, new Scopes((String[]) k[code[o]], s), at, work);
+                    continue;
+                case OpCode.EXIT:
+                    if (s == own) throw new IllegalArgumentException("EXIT without ENTER");
+                    reach(next, s.parent, at, work);
+                    continue;
+                case OpCode.DEFFUN: {
+                    Chunk fn = (Chunk) k[code[o]];
+                    verifyScopes(fn, new Scopes(fn.locals, s));
+                    break;
+                }
+                case OpCode.JMP:
+                    reach(code[o], s, at, work);
+                    continue;
+                case OpCode.JMPF:
+                    reach(code[o + 1], s, at, work);
+                    break;
+                case OpCode.RETURN:
+                    continue;
+                default:
+                    break;
+            }
+            reach(next, s, at, work);
+        }
+    }
+
+    private static void reach(int pc, Scopes s, Scopes[] at, ArrayDeque<Integer> work) {
+        if (pc >= at.length) throw new IllegalArgumentException("code runs past its end");
+        if (at[pc] == null) {
+            at[pc] = s;
+            work.push(pc);
+        } else if (!at[pc].sameAs(s)) {
+            throw new IllegalArgumentException("scopes differ between paths");
+        }
+    }
+
+    // Slot `index` of the scope `depth` out from `s`.
+    private static void slot(Scopes s, int depth, int index) {
+        if (depth < 0) throw new IllegalArgumentException("bad scope depth");
+        for (int d = 0; d < depth && s != null; d++) s = s.parent;
+        if (s == null) throw new IllegalArgumentException("bad scope depth");
+        if (index < 0 || index >= s.names.length) throw new IllegalArgumentException("bad slot");
+    }
+
+    // Registers first .. first + n - 1 of a frame with numRegs registers.
+    private static void regs(int first, int n, int numRegs) {
+        if (n < 0 || n > 0 && (first < 0 || first > numRegs - n)) throw new IllegalArgumentException("bad register");
+    }
+
+    // Constant `index`, of the given type unless that is null.
+    private static void constant(Object[] k, int index, Class<?> type) {
+        if (index < 0 || index >= k.length || type != null && !type.isInstance(k[index])) throw new IllegalArgumentException("bad constant");
+    }
+
+    private static void operator(int op, int first, int last) {
+        if (op < first || op > last) throw new IllegalArgumentException("bad operator");
+    }
+
+    private static void callSite(int site, int callSites) {
+        if (site < -1 || site >= callSites) throw new IllegalArgumentException("bad call site");
+    }
+
+    private static void target(int pc, boolean[] starts) {
+        if (pc < 0 || pc >= starts.length || !starts[pc]) throw new IllegalArgumentException("bad jump target");
+    }
+
+    private static Object readConstant(ByteBuffer in) {
+        byte tag = in.get();
+        switch (tag) {
+            case NULL: return null;
+            case INT: return in.getInt();
+            case LONG: return in.getLong();
+            case DOUBLE: return in.getDouble();
+            case BOOLEAN: return in.get() != 0;
+            case STRING: return readString(in);
+            case NAMES: return readStrings(in);
+            case CHUNK: return readChunk(in);
+            default: throw new IllegalArgumentException("bad constant tag " + tag);
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer in) {
+        String[] strings = new String[count(in, 4)];
+        for (int i = 0; i < strings.length; i++) strings[i] = readString(in);
+        return strings;
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[count(in, 1)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // A length prefix, checked against what is left so a damaged file cannot make the
+    // reader allocate a huge array.
+    private static int count(ByteBuffer in, int minBytesEach) {
+        int n = in.getInt();
+        if (n < 0 || (long) n * minBytesEach > in.remaining()) throw new IllegalArgumentException("bad length");
+        return n;
+    }
+}
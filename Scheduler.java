@@ -0,0 +1,7 @@
+// Runs submitted tasks until every one of them has finished.
+// CoopScheduler interleaves tasks on the calling thread;
+// ParallelScheduler spreads them across a pool of worker threads.
+public interface Scheduler {
+    void submit(CoroTask task);
+    void run();
+}
@@ -0,0 +1,44 @@
+import java.util.function.Consumer;
+
+// === Task Suspension ===
+// A builtin returns a Suspend instead of a value to take the calling task off the
+// ready queue. The scheduler acts on it once the task's turn has ended:
+//   YIELD       back of the ready queue
+//   sleep(ms)   the scheduler's timer queue, ready again once the delay has passed
+//   park(...)   nowhere at all — the task costs nothing until its Waker is called
+// The call's result is null, unless a Waker supplies one.
+final class Suspend {
+    static final Suspend YIELD = new Suspend(0, null);
+
+    final long delayNanos;
+    final Consumer<Waker> onPark;
+
+    private Suspend(long delayNanos, Consumer<Waker> onPark) {
+        this.delayNanos = delayNanos;
+        this.onPark = onPark;
+    }
+
+    static Suspend sleep(long millis) {
+        return millis <= 0 ? YIELD : new Suspend(millis * 1_000_000L, null);
+    }
+
+    // Park the task. `register` receives the task's Waker after the task has fully
+    // stopped, and should hand it to whatever will eventually resume the task.
+    static Suspend park(Consumer<Waker> register) {
+        return new Suspend(0, register);
+    }
+
+    boolean isPark() {
+        return onPark != null;
+    }
+
+    boolean isSleep() {
+        return delayNanos > 0;
+    }
+}
+
+// Resumes a parked task. `value` becomes the result of the builtin call that parked it.
+// Only the first call has any effect.
+interface Waker {
+    void wake(Object value);
+}
@@ -0,0 +1,44 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// === Task Handle ===
+// What spawn() returns: a future for the spawned task's result.
+// join(handle) returns the result, parking the caller until the task finishes.
+class TaskHandle {
+    private final String name;
+    private boolean done = false;
+    private Object result;
+    private final List<Waker> joiners = new ArrayList<>();
+
+    public TaskHandle(String name) {
+        this.name = name;
+    }
+
+    // Called by the task when its top frame returns.
+    public synchronized void complete(Object value) {
+        done = true;
+        result = value;
+        for (Waker w : joiners) w.wake(value);
+        joiners.clear();
+    }
+
+    // The result, or a Suspend whose wake-up delivers it.
+    public synchronized Object join() {
+        if (done) return result;
+        return Suspend.park(waker -> {
+            synchronized (this) {
+                if (done) waker.wake(result);
+                else joiners.add(waker);
+            }
+        });
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public String toString() {
+        return "<task " + name + ">";
+    }
+}
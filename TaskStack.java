@@ -0,0 +1,227 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+// === Task Stack ===
+// The frame stack and register file of one EvalTask, as plain arrays.
+// Nothing here is synchronized: a task is only ever stepped by one scheduler thread.
+// Frame records are allocated once per depth and reused by every later call at that
+// depth, so calling a function does not allocate a frame.
+//
+// Stacks are pooled per thread: a finished task hands its stack back with release(),
+// and the next spawned task picks it up instead of growing a fresh one.
+//
+// The frames double as the task's call stack. Recursion is limited per task by a
+// memory budget rather than a call count: each frame is charged the approximate size
+// of its frame record, registers and variable scope, so a task can recurse deeper
+// through small functions than through large ones. A stack trace is read straight off
+// the frame records when an error needs one.
+final class TaskStack {
+    public static final long DEFAULT_BUDGET = 1 << 20;   // bytes per task
+
+    // Approximate heap cost of one activation, in bytes.
+    private static final int FRAME_BYTES = 48;          // Frame record
+    private static final int SCOPE_BYTES = 40;          // Environment object and its arrays
+    private static final int CELL_BYTES = 12;           // one register or slot: reference + long
+
+    // Traces of deep recursion keep only the most recent calls.
+    private static final int TRACE_FRAMES = 50;
+
+    private static final int DEFAULT_FRAMES = 16;
+    private static final int DEFAULT_REGS = 64;
+
+    // Shrink policy: a stack that grew past these sizes (deep recursion) is cut back
+    // to the defaults when it is released, so the pool never pins a huge array.
+    private static final int RETAINED_FRAMES = 256;
+    private static final int RETAINED_REGS = 4096;
+    private static final int MAX_POOLED = 32;
+
+    private static final ThreadLocal<ArrayDeque<TaskStack>> POOL =
+            ThreadLocal.withInitial(ArrayDeque::new);
+
+    private Frame[] frames;
+    private int depth = 0;
+    private int framesUsed = 0; // high-water mark: popped frames keep their records until release()
+    private int calls = 0;      // frames with isCall set, i.e. user function calls
+    private long budget = DEFAULT_BUDGET;
+    private long used = 0;      // bytes charged to the frames currently on the stack
+
+    Object[] regs;
+    long[] prims;
+    private int regsUsed = 0;   // high-water mark, so release() only clears what was touched
+
+    private TaskStack(int frameHint, int regHint) {
+        frames = new Frame[Math.max(frameHint, 1)];
+        regs = new Object[Math.max(regHint, 1)];
+        prims = new long[regs.length];
+    }
+
+    // Take a stack from this thread's pool, sized for at least the given hints.
+    static TaskStack acquire(int frameHint, int regHint, long budget) {
+        TaskStack stack = POOL.get().poll();
+        if (stack == null) {
+            stack = new TaskStack(Math.max(frameHint, DEFAULT_FRAMES), Math.max(regHint, DEFAULT_REGS));
+        } else {
+            stack.ensureRegs(regHint);
+        }
+        stack.budget = budget;
+        return stack;
+    }
+
+    // Return this stack to the pool. The caller must not touch it afterwards.
+    void release() {
+        Arrays.fill(regs, 0, Math.min(regsUsed, regs.length), null);
+        for (int i = 0; i < framesUsed; i++) frames[i].clear();
+        depth = 0;
+        framesUsed = 0;
+        calls = 0;
+        used = 0;
+        regsUsed = 0;
+
+        if (frames.length > RETAINED_FRAMES) frames = Arrays.copyOf(frames, DEFAULT_FRAMES);
+        if (regs.length > RETAINED_REGS) {
+            regs = new Object[DEFAULT_REGS];
+            prims = new long[DEFAULT_REGS];
+        }
+
+        ArrayDeque<TaskStack> pool = POOL.get();
+        if (pool.size() < MAX_POOLED) pool.push(this);
+    }
+
+    // === Frames ===
+
+    Frame push(Chunk chunk, Environment env, int base, int returnReg, boolean isCall) {
+        ensureRegs(base + chunk.numRegs);
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+        }
+        Frame frame = frames[depth];
+        if (frame == null) {
+            frame = frames[depth] = new Frame();
+        }
+        depth++;
+        if (depth > framesUsed) framesUsed = depth;
+        if (isCall) calls++;
+        frame.reset(chunk, env, base, returnReg, isCall);
+        frame.cost = cost(chunk);
+        used += frame.cost;
+        return frame;
+    }
+
+    // Replace the top frame's code and scope in place (a tail call). Its registers,
+    // return register and call-stack position stay as they are.
+    Frame replaceTop(Chunk chunk, Environment env) {
+        Frame frame = frames[depth - 1];
+        ensureRegs(frame.base + chunk.numRegs);
+        frame.reset(chunk, env, frame.base, frame.returnReg, frame.isCall);
+        used -= frame.cost;
+        frame.cost = cost(chunk);
+        used += frame.cost;
+        return frame;
+    }
+
+    // Pop the top frame. The returned record stays valid until the next push.
+    Frame pop() {
+        Frame frame = frames[--depth];
+        if (frame.isCall) calls--;
+        used -= frame.cost;
+        return frame;
+    }
+
+    Frame top() {
+        return frames[depth - 1];
+    }
+
+    boolean isEmpty() {
+        return depth == 0;
+    }
+
+    // === Call stack ===
+
+    // Whether a frame for `chunk` fits in the budget, either pushed on top or, for a
+    // tail call, replacing the top frame.
+    boolean fits(Chunk chunk, boolean replacingTop) {
+        long after = used + cost(chunk) - (replacingTop ? frames[depth - 1].cost : 0);
+        return after <= budget;
+    }
+
+    long budget() {
+        return budget;
+    }
+
+    private static int cost(Chunk chunk) {
+        return FRAME_BYTES + SCOPE_BYTES + (chunk.numRegs + chunk.locals.length) * CELL_BYTES;
+    }
+
+    // Number of user function calls currently active in this task.
+    int callDepth() {
+        return calls;
+    }
+
+    // Active calls as a readable trace (most recent call first), one "at f(args)" per
+    // line. Arguments are read from each call's parameter slots.
+    String formatTrace() {
+        if (calls == 0) return "  (empty call stack)";
+        StringBuilder sb = new StringBuilder();
+        int shown = 0;
+        for (int i = depth - 1; i >= 0; i--) {
+            Frame frame = frames[i];
+            if (!frame.isCall) continue;
+            if (shown++ == TRACE_FRAMES) {
+                sb.append("  ... ").append(calls - TRACE_FRAMES).append(" more calls\n");
+                break;
+            }
+            sb.append("  at ").append(frame.chunk.name).append("(");
+            int argc = frame.chunk.params.size();
+            for (int j = 0; j < argc; j++) {
+                if (j > 0) sb.append(", ");
+                sb.append(frame.callEnv.slotValue(j));
+            }
+            sb.append(")");
+            int line = frame.chunk.lineAt(currentPc(i));
+            if (line > 0) sb.append(" line ").append(line);
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    // Where frame `i` is: the top frame's pc is the instruction it is executing, a
+    // caller's is just past its call.
+    private int currentPc(int i) {
+        int pc = frames[i].pc;
+        return i == depth - 1 ? pc : pc - 1;
+    }
+
+    // The stack as "<main>:12;f:3;g:7" (outermost first, each frame with its current
+    // source line), for the sampling profiler. Unlike everything else here it is
+    // called from another thread while the task runs, without synchronization: the
+    // frames it reads may be changing under it, so it checks what it reads and returns
+    // null when the stack is in flux. A profile is a statistical picture anyway.
+    String sample() {
+        Frame[] frames = this.frames;
+        int depth = Math.min(this.depth, frames.length);
+        if (depth == 0) return null;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            Frame frame = frames[i];
+            Chunk chunk = frame == null ? null : frame.chunk;
+            if (chunk == null) return null;
+            int pc = frame.pc;
+            if (i < depth - 1) pc--;
+            if (pc < 0 || pc >= chunk.code.length) return null;
+            if (i > 0) sb.append(';');
+            sb.append(chunk.name).append(':').append(chunk.lineAt(pc));
+        }
+        return sb.toString();
+    }
+
+    // === Registers ===
+
+    private void ensureRegs(int needed) {
+        if (needed > regsUsed) regsUsed = needed;
+        if (needed > regs.length) {
+            int size = Math.max(regs.length * 2, needed);
+            regs = Arrays.copyOf(regs, size);
+            prims = Arrays.copyOf(prims, size);
+        }
+    }
+}
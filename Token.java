@@ -12,9 +12,10 @@ public class Token {
         // Assignment operator
         EQ,      // =
 
-        // Parentheses and braces
+        // Parentheses, braces and brackets
         LPAREN, RPAREN,
         LBRACE, RBRACE,
+        LBRACKET, RBRACKET,
 
         // Separators
         COMMA,COLON,
@@ -26,10 +27,16 @@ public class Token {
 
     public final Type type;
     public final String value;
+    public final Operator op;   // which operator, for OP tokens
 
     public Token(Type type, String value) {
+        this(type, value, null);
+    }
+
+    public Token(Type type, String value, Operator op) {
         this.type = type;
         this.value = value;
+        this.op = op;
     }
 
     @Override
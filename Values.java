@@ -0,0 +1,72 @@
+// === Value Representation ===
+// Registers and variable slots hold numbers unboxed: the Object cell holds one of the
+// tags below and a parallel long[] cell holds the payload (an int, a long, or the raw
+// bits of a double). Every other value (strings, booleans, null) is stored as itself.
+// Anything that leaves the VM — builtin arguments, print, by-name lookups — is boxed
+// with box(); anything that enters it is unboxed with tag() and payload().
+//
+// Integers are canonical: a result that fits in an int is always tagged INT, and
+// only widens to LONG on overflow (and LONG to DOUBLE past 64 bits).
+final class Values {
+    private Values() {}
+
+    static final class Tag {
+        private final String name;
+        Tag(String name) { this.name = name; }
+        @Override public String toString() { return name; }
+    }
+
+    static final Tag INT = new Tag("int");
+    static final Tag LONG = new Tag("long");
+    static final Tag DOUBLE = new Tag("double");
+
+    static boolean isNumber(Object tag) {
+        return tag == INT || tag == LONG || tag == DOUBLE;
+    }
+
+    // Convert a cell (tag + payload) into an ordinary Java value.
+    static Object box(Object ref, long prim) {
+        if (ref == INT) return (int) prim;
+        if (ref == LONG) return prim;
+        if (ref == DOUBLE) return Double.longBitsToDouble(prim);
+        return ref;
+    }
+
+    // The Object cell for a Java value.
+    static Object tag(Object value) {
+        if (value instanceof Integer) return INT;
+        if (value instanceof Long) return fitsInt((Long) value) ? INT : LONG;
+        if (value instanceof Double) return DOUBLE;
+        return value;
+    }
+
+    // The long cell for a Java value (0 for non-numbers).
+    static long payload(Object value) {
+        if (value instanceof Integer) return (Integer) value;
+        if (value instanceof Long) return (Long) value;
+        if (value instanceof Double) return Double.doubleToRawLongBits((Double) value);
+        return 0;
+    }
+
+    static boolean fitsInt(long v) {
+        return v == (int) v;
+    }
+
+    static double asDouble(Object tag, long prim) {
+        if (tag == DOUBLE) return Double.longBitsToDouble(prim);
+        return prim; // INT and LONG payloads are already sign-extended longs
+    }
+
+    static boolean isTruthy(Object ref, long prim) {
+        if (ref == INT || ref == LONG) return prim != 0;
+        if (ref == DOUBLE) return Double.longBitsToDouble(prim) != 0;
+        return isTruthy(ref);
+    }
+
+    static boolean isTruthy(Object o) {
+        if (o == null) return false;
+        if (o instanceof Boolean) return (Boolean) o;
+        if (o instanceof Number) return ((Number) o).doubleValue() != 0;
+        return true;
+    }
+}
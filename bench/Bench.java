@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// === Benchmark suite ===
+// Times every stage of the interpreter on fixed workloads: lexing, parsing, compiling,
+// running recursive, loop-heavy, string-heavy, list- and dict-heavy and concurrent
+// scripts, raw CoopScheduler throughput, and arithmetic and call dispatch micro-ops.
+// Plain System.nanoTime harness, no dependencies: each benchmark is warmed up, then
+// timed in SAMPLES batches, and the median time per operation is reported.
+//
+//   javac -d /tmp/bench *.java bench/Bench.java bench/Workloads.java && java -cp /tmp/bench Bench [name-prefix...]
+//
+// --save FILE writes the results; --baseline FILE compares against saved results and
+// exits with status 1 if any benchmark got slower than --threshold percent (default
+// 10), so a regression fails the run before it ships.
+public class Bench {
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final long SAMPLE_NANOS = 100_000_000L;
+    private static final int SAMPLES = 10;
+
+    // Results the JIT must assume are used.
+    static volatile Object sink;
+
+    public static void main(String[] args) throws IOException {
+        List<String> only = new ArrayList<>();
+        Path save = null, baseline = null;
+        double threshold = 10;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--save": save = Paths.get(value(args, i++)); break;
+                case "--baseline": baseline = Paths.get(value(args, i++)); break;
+                case "--threshold": threshold = Double.parseDouble(value(args, i++)); break;
+                default: only.add(args[i]);
+            }
+        }
+
+        String large = Workloads.source("large");
+        Map<String, Runnable> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("lex.large", () -> sink = Workloads.lex(large));
+        benchmarks.put("parse.large", () -> sink = Workloads.parse(large));
+        benchmarks.put("compile.large", () -> sink = Workloads.compile(large));
+        for (String name : new String[] {"recursive", "loop", "strings", "concurrent", "lists", "dicts"}) {
+            Chunk program = Workloads.compile(Workloads.source(name));
+            benchmarks.put("run." + name, () -> sink = Workloads.run(program));
+        }
+        benchmarks.put("sched.coop-1000-tasks", () -> Workloads.schedule(1000, 100));
+        Chunk arithmetic = Workloads.compile(Workloads.source("arithmetic"));
+        Chunk calls = Workloads.compile(Workloads.source("calls"));
+        benchmarks.put("op.arithmetic", () -> sink = Workloads.run(arithmetic));
+        benchmarks.put("op.call", () -> sink = Workloads.run(calls));
+
+        Map<String, Double> previous = baseline == null ? Collections.emptyMap() : readResults(baseline);
+        Map<String, Double> results = new LinkedHashMap<>();
+        boolean regressed = false;
+        for (Map.Entry<String, Runnable> b : benchmarks.entrySet()) {
+            if (!only.isEmpty() && only.stream().noneMatch(b.getKey()::startsWith)) continue;
+            double[] nsPerOp = measure(b.getValue());
+            double median = nsPerOp[SAMPLES / 2];
+            results.put(b.getKey(), median);
+            String line = String.format("%-24s %12.3f ms/op  (min %.3f, max %.3f)",
+                    b.getKey(), median / 1e6, nsPerOp[0] / 1e6, nsPerOp[SAMPLES - 1] / 1e6);
+            Double before = previous.get(b.getKey());
+            if (before != null) {
+                double change = 100 * (median - before) / before;
+                line += String.format("  %+6.1f%%", change);
+                if (change > threshold) {
+                    line += "  REGRESSION";
+                    regressed = true;
+                }
+            }
+            System.out.println(line);
+        }
+
+        if (save != null) {
+            StringBuilder out = new StringBuilder();
+            for (Map.Entry<String, Double> r : results.entrySet()) out.append(r.getKey()).append(' ').append(r.getValue()).append('\n');
+            Files.write(save, out.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (regressed) System.exit(1);
+    }
+
+    // === Harness ===
+
+    // Nanoseconds per operation in each sample, sorted.
+    private static double[] measure(Runnable op) {
+        long end = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < end) op.run();
+
+        double[] samples = new double[SAMPLES];
+        for (int s = 0; s < SAMPLES; s++) {
+            long start = System.nanoTime();
+            long ops = 0;
+            long now;
+            do {
+                op.run();
+                ops++;
+                now = System.nanoTime();
+            } while (now - start < SAMPLE_NANOS);
+            samples[s] = (double) (now - start) / ops;
+        }
+        Arrays.sort(samples);
+        return samples;
+    }
+
+    // The value following the flag at args[i]; a flag given last prints usage and exits.
+    private static String value(String[] args, int i) {
+        if (i + 1 >= args.length) {
+            System.err.println("Missing value for " + args[i]);
+            System.err.println("Usage: Bench [--save FILE] [--baseline FILE] [--threshold PCT] [name-prefix...]");
+            System.exit(2);
+        }
+        return args[i + 1];
+    }
+
+    private static Map<String, Double> readResults(Path file) throws IOException {
+        Map<String, Double> results = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            String[] parts = line.trim().split(" ");
+            if (parts.length == 2) results.put(parts[0], Double.parseDouble(parts[1]));
+        }
+        return results;
+    }
+}
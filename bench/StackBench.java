@@ -0,0 +1,67 @@
+import java.util.Collections;
+import java.util.Stack;
+
+// === Stack micro-benchmark ===
+// Compares the frame handling EvalTask used to do (java.util.Stack plus a new
+// record per call) with TaskStack's reused frame records, and times a full
+// call-heavy program. Plain System.nanoTime harness, no dependencies:
+//
+//   javac -d /tmp/bench *.java bench/StackBench.java && java -cp /tmp/bench StackBench
+public class StackBench {
+    private static final int DEPTH = 32;
+    private static final int ROUNDS = 200_000;
+    private static final int TRIALS = 5;
+
+    public static void main(String[] args) {
+        Chunk chunk = new Chunk("f", Collections.emptyList(), new String[0],
+                new int[] { OpCode.NULL, 0, OpCode.RETURN, 0 }, new Object[0], 4, 0, 0);
+        Environment env = new Environment();
+
+        for (int trial = 0; trial < TRIALS; trial++) {
+            long synced = time(() -> {
+                Stack<Frame> frames = new Stack<>();
+                for (int round = 0; round < ROUNDS; round++) {
+                    for (int i = 0; i < DEPTH; i++) {
+                        Frame f = new Frame();
+                        f.reset(chunk, env, i * 4, i * 4 - 1, true);
+                        frames.push(f);
+                        frames.peek().pc++;
+                    }
+                    while (!frames.isEmpty()) frames.pop();
+                }
+            });
+            long pooled = time(() -> {
+                for (int round = 0; round < ROUNDS; round++) {
+                    TaskStack stack = TaskStack.acquire(0, chunk.numRegs, TaskStack.DEFAULT_BUDGET);
+                    for (int i = 0; i < DEPTH; i++) {
+                        stack.push(chunk, env, i * 4, i * 4 - 1, true);
+                        stack.top().pc++;
+                    }
+                    while (!stack.isEmpty()) stack.pop();
+                    stack.release();
+                }
+            });
+            double steps = (double) ROUNDS * DEPTH;
+            System.out.printf("trial %d: java.util.Stack %.2f ns/call, TaskStack %.2f ns/call%n",
+                    trial, synced / steps, pooled / steps);
+        }
+
+        String program =
+                "function fib(n):\n" +
+                "    if (n < 2):\n" +
+                "        return n\n" +
+                "    return fib(n - 1) + fib(n - 2)\n" +
+                "let r = fib(22)\n";
+        Chunk compiled = new Compiler().compile(new Parser(new Lexer(program)).parse());
+        for (int trial = 0; trial < TRIALS; trial++) {
+            long ns = time(() -> new Interpreter().execute(compiled));
+            System.out.printf("trial %d: fib(22) %.1f ms%n", trial, ns / 1e6);
+        }
+    }
+
+    private static long time(Runnable body) {
+        long start = System.nanoTime();
+        body.run();
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,196 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+// === Benchmark workloads ===
+// The fixed scripts and operations timed by both the Bench harness and the JMH
+// benchmarks in jmh/. Public so the JMH classes, which cannot live in the default
+// package, can reach them by reflection.
+public final class Workloads {
+    private Workloads() {}
+
+    static final String RECURSIVE =
+            "function fib(n):\n" +
+            "    if (n < 2):\n" +
+            "        return n\n" +
+            "    return fib(n - 1) + fib(n - 2)\n" +
+            "let r = fib(20)\n";
+
+    static final String LOOP =
+            "let total = 0\n" +
+            "for (let i = 0; i < 200000; i = i + 1):\n" +
+            "    if (i / 3 * 3 == i):\n" +
+            "        total = total + i\n" +
+            "    else:\n" +
+            "        total = total - 1\n";
+
+    static final String STRINGS =
+            "let s = \"\"\n" +
+            "let n = 0\n" +
+            "let i = 0\n" +
+            "while (i < 20000):\n" +
+            "    let word = \"item\" + str(i)\n" +
+            "    n = n + len(word)\n" +
+            "    if (len(s) > 1000):\n" +
+            "        s = \"\"\n" +
+            "    s = s + word + \",\"\n" +
+            "    i = i + 1\n" +
+            "print(n)\n";
+
+    static final String CONCURRENT =
+            "function worker(input, output, n):\n" +
+            "    let i = 0\n" +
+            "    while (i < n):\n" +
+            "        send(output, recv(input) + 1)\n" +
+            "        i = i + 1\n" +
+            "function feed(ch, n):\n" +
+            "    let i = 0\n" +
+            "    while (i < n):\n" +
+            "        send(ch, i)\n" +
+            "        i = i + 1\n" +
+            "let first = channel(16)\n" +
+            "let ch = first\n" +
+            "let k = 0\n" +
+            "while (k < 50):\n" +
+            "    let next = channel(16)\n" +
+            "    spawn(\"worker\", ch, next, 200)\n" +
+            "    ch = next\n" +
+            "    k = k + 1\n" +
+            "spawn(\"feed\", first, 200)\n" +
+            "let total = 0\n" +
+            "let j = 0\n" +
+            "while (j < 200):\n" +
+            "    total = total + recv(ch)\n" +
+            "    j = j + 1\n" +
+            "print(total)\n";
+
+    static final String ARITHMETIC =
+            "let a = 7\n" +
+            "let b = 3\n" +
+            "let x = 0\n" +
+            "let i = 0\n" +
+            "while (i < 100000):\n" +
+            "    x = (a + i) * b - x / (b + 1)\n" +
+            "    i = i + 1\n";
+
+    static final String CALLS =
+            "function add(x, y):\n" +
+            "    return x + y\n" +
+            "let t = 0\n" +
+            "let i = 0\n" +
+            "while (i < 100000):\n" +
+            "    t = add(t, i)\n" +
+            "    i = i + 1\n";
+
+    static final String LISTS =
+            "let xs = []\n" +
+            "for (let i = 0; i < 20000; i = i + 1):\n" +
+            "    push(xs, i * 7919 - i * i)\n" +
+            "for (let i = 1; i < len(xs); i = i + 1):\n" +
+            "    xs[i] = xs[i] - xs[i - 1] + i\n" +
+            "sort(xs)\n" +
+            "let total = sum(xs)\n";
+
+    static final String DICTS =
+            "let names = {}\n" +
+            "for (let i = 0; i < 2000; i = i + 1):\n" +
+            "    names[\"key\" + str(i)] = i\n" +
+            "let squares = {}\n" +
+            "for (let i = 0; i < 20000; i = i + 1):\n" +
+            "    squares[i] = i * i\n" +
+            "let hits = 0\n" +
+            "for (let i = 0; i < 20000; i = i + 1):\n" +
+            "    hits = hits + squares[i] / (i + 1)\n" +
+            "    if (has(names, \"key\" + str(i))):\n" +
+            "        hits = hits + 1\n";
+
+    // A long program mixing every statement kind, for the front-end benchmarks.
+    static final String LARGE = large(2000);
+
+    private static String large(int copies) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < copies; i++) {
+            sb.append("function f").append(i).append("(a, b):\n")
+              .append("    let s = \"value \" + str(a)\n")
+              .append("    if (a < b && !(a == 3)):\n")
+              .append("        return a * (b - 1) + len(s)\n")
+              .append("    return b\n")
+              .append("let v").append(i).append(" = f").append(i).append("(").append(i).append(", 10)\n")
+              .append("for (let i = 0; i < 3; i = i + 1):\n")
+              .append("    v").append(i).append(" = v").append(i).append(" + i # running total\n");
+        }
+        return sb.toString();
+    }
+
+    // The script for a workload name: the constant above in lower case.
+    public static String source(String name) {
+        switch (name) {
+            case "recursive": return RECURSIVE;
+            case "loop": return LOOP;
+            case "strings": return STRINGS;
+            case "concurrent": return CONCURRENT;
+            case "arithmetic": return ARITHMETIC;
+            case "calls": return CALLS;
+            case "lists": return LISTS;
+            case "dicts": return DICTS;
+            case "large": return LARGE;
+            default: throw new IllegalArgumentException("Unknown workload: " + name);
+        }
+    }
+
+    // === Operations ===
+
+    public static Object lex(String source) {
+        return new Lexer(source).tokenize();
+    }
+
+    public static Object parse(String source) {
+        return new Parser(new Lexer(source)).parse();
+    }
+
+    // Memoization off, so every run does the full work.
+    public static Chunk compile(String source) {
+        ASTNode program = Optimizer.optimize(new Parser(new Lexer(source)).parse());
+        return new Compiler().setMemoCapacity(0).compile(program);
+    }
+
+    private static final Output DISCARD = new Output(new WritableByteChannel() {
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {}
+    }, StandardCharsets.UTF_8, Output.DEFAULT_CAPACITY);
+
+    // A fresh context per run, as the command line does; errors fail the benchmark.
+    public static Object run(Chunk program) {
+        return new ExecutionContext(1, TaskStack.DEFAULT_BUDGET, DISCARD).run(program, Collections.emptyMap());
+    }
+
+    // `tasks` plain tasks of `steps` steps each, on one CoopScheduler.
+    public static void schedule(int tasks, int steps) {
+        CoopScheduler scheduler = new CoopScheduler();
+        for (int t = 0; t < tasks; t++) {
+            scheduler.submit(new CoroTask() {
+                private int left = steps;
+
+                public boolean step() {
+                    return --left > 0;
+                }
+
+                // Yield after every step, like a task that prints in a loop.
+                public boolean step(int budget) {
+                    return step();
+                }
+            });
+        }
+        scheduler.run();
+    }
+}
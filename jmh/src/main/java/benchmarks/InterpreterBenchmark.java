@@ -0,0 +1,119 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// === JMH benchmarks ===
+// The Bench suite under JMH: forked JVMs, proper warmup and dead-code protection.
+// The interpreter lives in the default package, which JMH does not accept and a
+// named package cannot import, so each operation is bound once through a constant
+// MethodHandle to Workloads, which the JIT inlines like a direct call.
+//
+//   mvn -B package -DskipTests && java -jar jmh/target/benchmarks.jar [regex]
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+    private static final MethodHandle SOURCE = workload("source", String.class, String.class);
+    private static final MethodHandle LEX = workload("lex", Object.class, String.class);
+    private static final MethodHandle PARSE = workload("parse", Object.class, String.class);
+    private static final MethodHandle COMPILE = workload("compile", chunk(), String.class);
+    private static final MethodHandle RUN = workload("run", Object.class, chunk());
+    private static final MethodHandle SCHEDULE = workload("schedule", void.class, int.class, int.class);
+
+    private static Class<?> chunk() {
+        try {
+            return Class.forName("Chunk");
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Workloads.name as a handle taking and returning Object, so callers need not
+    // name interpreter types.
+    private static MethodHandle workload(String name, Class<?> returns, Class<?>... params) {
+        try {
+            MethodHandle h = MethodHandles.publicLookup().findStatic(
+                    Class.forName("Workloads"), name, MethodType.methodType(returns, params));
+            return returns == void.class ? h : h.asType(h.type().generic());
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // === Front end, on the large program ===
+
+    @State(Scope.Benchmark)
+    public static class Large {
+        Object source;
+
+        @Setup
+        public void setup() throws Throwable {
+            source = SOURCE.invokeExact((Object) "large");
+        }
+    }
+
+    @Benchmark
+    public Object lex(Large s) throws Throwable {
+        return LEX.invokeExact(s.source);
+    }
+
+    @Benchmark
+    public Object parse(Large s) throws Throwable {
+        return PARSE.invokeExact(s.source);
+    }
+
+    @Benchmark
+    public Object compile(Large s) throws Throwable {
+        return COMPILE.invokeExact(s.source);
+    }
+
+    // === Whole scripts, compiled once ===
+
+    @State(Scope.Benchmark)
+    public static class Script {
+        @Param({"recursive", "loop", "strings", "concurrent", "lists", "dicts", "arithmetic", "calls"})
+        public String workload;
+
+        Object program;
+
+        @Setup
+        public void setup() throws Throwable {
+            program = COMPILE.invokeExact(SOURCE.invokeExact((Object) workload));
+        }
+    }
+
+    @Benchmark
+    public Object run(Script s) throws Throwable {
+        return RUN.invokeExact(s.program);
+    }
+
+    // === CoopScheduler throughput: tasks of 100 steps each ===
+
+    @State(Scope.Benchmark)
+    public static class Tasks {
+        @Param({"1000"})
+        public int tasks;
+    }
+
+    @Benchmark
+    public void schedule(Tasks s) throws Throwable {
+        SCHEDULE.invokeExact(s.tasks, 100);
+    }
+}
@@ -0,0 +1,94 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// === Script tests ===
+// Runs every tests/*.txt script and compares what it prints with the matching
+// .expected file, line by line. A runtime error is compared as the line
+// "Runtime error: <message>", as the command line prints it. Each script runs on
+// the cooperative scheduler and then REPEATS times on each parallel worker count,
+// so a script must print the same lines whichever order its tasks run in.
+// No dependencies, like bench/:
+//
+//   javac -d /tmp/tests *.java tests/ScriptTests.java && java -cp /tmp/tests ScriptTests [name-prefix...]
+//
+// Exits with status 1 if any script printed something else.
+public class ScriptTests {
+    private static final int[] WORKERS = {1, 2, 8};
+    private static final int REPEATS = 5;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get("tests");
+        List<Path> scripts = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.txt")) {
+            for (Path file : files) scripts.add(file);
+        }
+        Collections.sort(scripts);
+
+        int failed = 0, passed = 0;
+        for (Path script : scripts) {
+            String name = script.getFileName().toString().replaceFirst("\\.txt$", "");
+            if (args.length > 0 && Arrays.stream(args).noneMatch(name::startsWith)) continue;
+            List<String> expected = Files.readAllLines(dir.resolve(name + ".expected"));
+            Chunk program = compile(script);
+            String failure = null;
+            for (int workers : WORKERS) {
+                for (int r = 0; r < (workers == 1 ? 1 : REPEATS) && failure == null; r++) {
+                    List<String> actual = run(program, workers);
+                    if (!actual.equals(expected)) failure = describe(workers, expected, actual);
+                }
+            }
+            if (failure == null) {
+                passed++;
+                System.out.println("ok    " + name);
+            } else {
+                failed++;
+                System.out.println("FAIL  " + name + ": " + failure);
+            }
+        }
+        System.out.println(passed + " passed, " + failed + " failed");
+        if (failed > 0) System.exit(1);
+    }
+
+    private static Chunk compile(Path script) throws IOException {
+        ASTNode program = Optimizer.optimize(new Parser(new Lexer(Files.newBufferedReader(script))).parse());
+        return new Compiler().setMemoCapacity(Memo.DEFAULT_CAPACITY).compile(program);
+    }
+
+    // The lines printed by one run, in a fresh context as the command line does.
+    private static List<String> run(Chunk program, int workers) {
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        Output output = new Output(Channels.newChannel(printed), StandardCharsets.UTF_8, Output.DEFAULT_CAPACITY);
+        String error = null;
+        try {
+            new ExecutionContext(workers, TaskStack.DEFAULT_BUDGET, output).run(program, Collections.emptyMap());
+        } catch (RuntimeException e) {
+            error = "Runtime error: " + e.getMessage();
+        }
+        output.flush();
+        List<String> lines = new ArrayList<>();
+        String text = new String(printed.toByteArray(), StandardCharsets.UTF_8);
+        if (!text.isEmpty()) lines.addAll(Arrays.asList(text.split("\\R", -1)));
+        if (!lines.isEmpty() && lines.get(lines.size() - 1).isEmpty()) lines.remove(lines.size() - 1);
+        if (error != null) lines.addAll(Arrays.asList(error.split("\\R")));
+        return lines;
+    }
+
+    // The first line that differs.
+    private static String describe(int workers, List<String> expected, List<String> actual) {
+        int i = 0;
+        while (i < expected.size() && i < actual.size() && expected.get(i).equals(actual.get(i))) i++;
+        String want = i < expected.size() ? expected.get(i) : "<end of output>";
+        String got = i < actual.size() ? actual.get(i) : "<end of output>";
+        return "with " + workers + " worker(s), line " + (i + 1) + ": expected \"" + want + "\", got \"" + got + "\"";
+    }
+}
@@ -0,0 +1,76 @@
+import java.lang.reflect.Field;
+import java.util.Collections;
+
+// === TaskStack tests ===
+// Checks that a stack handed back to the pool with release() no longer references
+// anything from the run that used it: no frame keeps its chunk, scope or memo key, and
+// no register keeps a value. A pooled stack that did would keep every finished run's
+// environments, and the lists and dicts in them, reachable.
+//
+//   javac -d /tmp/tests *.java tests/TaskStackTests.java && java -cp /tmp/tests TaskStackTests
+//
+// Exits with status 1 on a failure.
+public class TaskStackTests {
+    private static int failed = 0;
+
+    public static void main(String[] args) throws ReflectiveOperationException {
+        releasedStackHoldsNoReferences();
+        releasedStackAfterReuseHoldsNoReferences();
+        System.out.println(failed == 0 ? "TaskStack: all checks passed" : "TaskStack: " + failed + " check(s) failed");
+        if (failed > 0) System.exit(1);
+    }
+
+    // Calls three deep, returned one at a time, as EvalTask does.
+    private static void releasedStackHoldsNoReferences() throws ReflectiveOperationException {
+        TaskStack stack = TaskStack.acquire(0, 4, TaskStack.DEFAULT_BUDGET);
+        Chunk chunk = chunk("f");
+        Environment env = new Environment();
+        for (int i = 0; i < 3; i++) {
+            Frame frame = stack.push(chunk, env, 4 * i, 0, true);
+            frame.memoKey = "key";
+            stack.regs[4 * i] = new ListValue();
+        }
+        while (!stack.isEmpty()) stack.pop();
+        stack.release();
+        check("after popping every frame", stack);
+        check("when taken from the pool again", TaskStack.acquire(0, 4, TaskStack.DEFAULT_BUDGET));
+    }
+
+    // A deeper stack popped only part of the way, then pushed again lower down.
+    private static void releasedStackAfterReuseHoldsNoReferences() throws ReflectiveOperationException {
+        TaskStack stack = TaskStack.acquire(0, 4, TaskStack.DEFAULT_BUDGET);
+        Chunk chunk = chunk("g");
+        for (int i = 0; i < 5; i++) stack.push(chunk, new Environment(), 4 * i, 0, true);
+        stack.pop();
+        stack.pop();
+        stack.push(chunk, new Environment(), 12, 0, false);
+        while (!stack.isEmpty()) stack.pop();
+        stack.release();
+        check("after frames were reused at a lower depth", stack);
+    }
+
+    private static Chunk chunk(String name) {
+        return new Chunk(name, Collections.emptyList(), new String[0], new int[] {OpCode.RETURN, 0}, new Object[0], 4, 0, 0);
+    }
+
+    private static void check(String when, TaskStack stack) throws ReflectiveOperationException {
+        Field framesField = TaskStack.class.getDeclaredField("frames");
+        framesField.setAccessible(true);
+        Frame[] frames = (Frame[]) framesField.get(stack);
+        for (int i = 0; i < frames.length; i++) {
+            Frame f = frames[i];
+            if (f == null) continue;
+            if (f.chunk != null || f.env != null || f.callEnv != null || f.memo != null || f.memoKey != null) {
+                fail(when + ": frame " + i + " still references its chunk, scope or memo key");
+            }
+        }
+        for (int i = 0; i < stack.regs.length; i++) {
+            if (stack.regs[i] != null) fail(when + ": register " + i + " still holds " + stack.regs[i]);
+        }
+    }
+
+    private static void fail(String message) {
+        failed++;
+        System.out.println("FAIL  " + message);
+    }
+}